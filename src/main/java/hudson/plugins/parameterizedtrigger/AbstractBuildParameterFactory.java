@@ -5,6 +5,7 @@ import hudson.model.AbstractDescribableImpl;
 import hudson.model.TaskListener;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -32,6 +33,33 @@ public abstract class AbstractBuildParameterFactory extends AbstractDescribableI
     public abstract List<AbstractBuildParameters> getParameters(AbstractBuild<?, ?> build, TaskListener listener)
             throws IOException, InterruptedException, AbstractBuildParameters.DontTriggerException;
 
+    /**
+     * Produces the same parameters as {@link #getParameters}, but one at a
+     * time, so that builds can be triggered before all of them are known.
+     * This is only used for the last factory of a trigger, whose parameters
+     * are only iterated over once.
+     *
+     * @return {@code null} if this factory does not stream its parameters, in
+     * which case {@link #getParameters} is used.
+     */
+    public Iterator<AbstractBuildParameters> streamParameters(AbstractBuild<?, ?> build, TaskListener listener)
+            throws IOException, InterruptedException, AbstractBuildParameters.DontTriggerException {
+        return null;
+    }
+
+    /**
+     * Identifies the parameters this factory produces for a build, so that
+     * they are only computed once per build step for all the factories of the
+     * same class that return the same key. The key covers the configuration of
+     * the factory, not the workspace files it reads.
+     *
+     * @return {@code null} if the parameters must be computed every time.
+     */
+    public String getMemoKey(AbstractBuild<?, ?> build, TaskListener listener)
+            throws IOException, InterruptedException {
+        return null;
+    }
+
     @Override
     public AbstractBuildParameterFactoryDescriptor getDescriptor() {
         return (AbstractBuildParameterFactoryDescriptor) super.getDescriptor();
@@ -11,7 +11,6 @@ import com.google.common.collect.ListMultimap;
 
 import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CancellationException;
 import java.util.concurrent.Future;
 
 import org.acegisecurity.context.SecurityContext;
@@ -19,6 +18,8 @@ import org.acegisecurity.context.SecurityContextHolder;
 
 /**
  * BlockableBuildTriggerCallable enables running of configurations in parallel.
+ * It schedules the downstream builds of one configuration and registers them
+ * with a {@link DownstreamWaitSet}.
  *
  * @author Patrick McKeown
  */
@@ -31,10 +32,22 @@ public class BlockableBuildTriggerCallable implements Callable<Boolean> {
     private final BuildListener listener;
     private boolean buildStepResult;
     private final SecurityContext authorizedContext;
+    private final DownstreamWaitSet waitSet;
+    private final boolean ownWaitSet;
 
     public BlockableBuildTriggerCallable(BlockableBuildTriggerConfig config,
             AbstractBuild<?, ?> build, EnvVars env, Launcher launcher,
             BuildListener listener) {
+        this(config, build, env, launcher, listener, null);
+    }
+
+    /**
+     * @param waitSet The wait set the downstream builds are registered with.
+     * If {@code null}, the callable waits for them itself before returning.
+     */
+    public BlockableBuildTriggerCallable(BlockableBuildTriggerConfig config,
+            AbstractBuild<?, ?> build, EnvVars env, Launcher launcher,
+            BuildListener listener, DownstreamWaitSet waitSet) {
         this.config = config;
         this.build = build;
         this.env = env;
@@ -42,6 +55,8 @@ public class BlockableBuildTriggerCallable implements Callable<Boolean> {
         this.listener = listener;
         this.buildStepResult = true;
         this.authorizedContext = SecurityContextHolder.getContext();
+        this.ownWaitSet = waitSet == null;
+        this.waitSet = ownWaitSet ? new DownstreamWaitSet(build) : waitSet;
     }
 
     public Boolean call() throws Exception {
@@ -51,7 +66,7 @@ public class BlockableBuildTriggerCallable implements Callable<Boolean> {
             List<AbstractProject> projectList = config.getProjectList(build.getRootBuild().getProject().getParent(), env);
             if (config.isConditionMet(build, listener, env)) {
                 ListMultimap<AbstractProject, Future<AbstractBuild>> futures = config
-                        .perform2(build, launcher, listener);
+                        .perform2(build, launcher, listener, waitSet);
                 if (!projectList.isEmpty()) {
                     // handle non-blocking configs
                     if (futures.isEmpty()) {
@@ -60,7 +75,8 @@ public class BlockableBuildTriggerCallable implements Callable<Boolean> {
                                 "Triggering projects: "
                                 + config.getProjectListAsString(projectList));
                     } else {
-                        // handle blocking configs
+                        // handle blocking configs; the builds are waited for
+                        // through the wait set rather than on this thread
                         for (AbstractProject p : projectList) {
                             // handle non-buildable projects
                             if (!p.isBuildable()) {
@@ -74,40 +90,18 @@ public class BlockableBuildTriggerCallable implements Callable<Boolean> {
                                 continue;
                             }
                             for (Future<AbstractBuild> future : futures.get(p)) {
-                                try {
-                                    listener.getLogger()
-                                            .println(
-                                            "Waiting for the completion of "
-                                            + HyperlinkNote.encodeTo(
-                                            '/' + p.getUrl(),
-                                            p.getFullDisplayName()));
-                                    AbstractBuild b = future.get();
-                                    listener.getLogger().println(
-                                            HyperlinkNote.encodeTo(
-                                            '/' + b.getUrl(),
-                                            b.getFullDisplayName())
-                                            + " completed. Result was "
-                                            + b.getResult());
-                                    build.getActions().add(
-                                            new BuildInfoExporterAction(b
-                                            .getProject().getFullName(), b
-                                            .getNumber()));
-
-                                    if (buildStepResult
-                                            && config.getBlock()
-                                            .mapBuildStepResult(
-                                            b.getResult())) {
-                                        build.setResult(config.getBlock()
-                                                .mapBuildResult(b.getResult()));
-                                    } else {
-                                        buildStepResult = false;
-                                    }
-                                } catch (CancellationException x) {
-                                    throw new AbortException(p.getFullDisplayName()
-                                            + " aborted.");
-                                }
+                                listener.getLogger()
+                                        .println(
+                                        "Waiting for the completion of "
+                                        + HyperlinkNote.encodeTo(
+                                        '/' + p.getUrl(),
+                                        p.getFullDisplayName()));
+                                waitSet.waitFor(config, p, future);
                             }
                         }
+                        if (ownWaitSet) {
+                            buildStepResult = waitSet.await(listener);
+                        }
                     }
                 } else {
                     throw new AbortException(
@@ -119,6 +113,9 @@ public class BlockableBuildTriggerCallable implements Callable<Boolean> {
                         + " as script condition was not met.");
             }
         } finally {
+            if (ownWaitSet) {
+                waitSet.close();
+            }
             SecurityContextHolder.setContext(originalContent);
         }
         return buildStepResult;
@@ -1,5 +1,6 @@
 package hudson.plugins.parameterizedtrigger;
 
+import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.Launcher;
@@ -12,12 +13,15 @@ import hudson.model.Cause.UpstreamCause;
 import hudson.model.Hudson;
 import hudson.model.Node;
 import hudson.model.Run;
+import hudson.util.FormValidation;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
 
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -30,8 +34,19 @@ import java.util.concurrent.Future;
  */
 public class BlockableBuildTriggerConfig extends BuildTriggerConfig {
 
+    /**
+     * Bounds of the delay between two attempts to put a build in the queue,
+     * in milliseconds.
+     */
+    private static final long MIN_RETRY_DELAY = 100;
+    private static final long MAX_RETRY_DELAY = 5000;
     private final BlockingBehaviour block;
     private final ConditionalTriggerConfig conditionalTrigger;
+    /**
+     * How many builds of each project one build may have queued or running at
+     * once when blocking, 0 for no limit.
+     */
+    private final int maxConcurrentPerProject;
     public boolean buildAllNodesWithLabel;
 
     public BlockableBuildTriggerConfig(String projects,
@@ -39,6 +54,7 @@ public class BlockableBuildTriggerConfig extends BuildTriggerConfig {
         super(projects, ResultCondition.ALWAYS, false, configs);
         this.block = block;
         this.conditionalTrigger = null;
+        this.maxConcurrentPerProject = 0;
     }
 
     public BlockableBuildTriggerConfig(String projects,
@@ -47,17 +63,49 @@ public class BlockableBuildTriggerConfig extends BuildTriggerConfig {
         super(projects, ResultCondition.ALWAYS, false, configs);
         this.block = block;
         this.conditionalTrigger = conditionalTrigger;
+        this.maxConcurrentPerProject = 0;
     }
 
-    @DataBoundConstructor
     public BlockableBuildTriggerConfig(String projects,
             ConditionalTriggerConfig conditionalTrigger,
             BlockingBehaviour block,
             List<AbstractBuildParameterFactory> configFactories,
             List<AbstractBuildParameters> configs) {
-        super(projects, ResultCondition.ALWAYS, false, configFactories, configs);
+        this(projects, conditionalTrigger, block, configFactories, configs, null);
+    }
+
+    public BlockableBuildTriggerConfig(String projects,
+            ConditionalTriggerConfig conditionalTrigger,
+            BlockingBehaviour block,
+            List<AbstractBuildParameterFactory> configFactories,
+            List<AbstractBuildParameters> configs,
+            TriggerRateLimit rateLimit) {
+        this(projects, conditionalTrigger, block, configFactories, configs, rateLimit, 0);
+    }
+
+    public BlockableBuildTriggerConfig(String projects,
+            ConditionalTriggerConfig conditionalTrigger,
+            BlockingBehaviour block,
+            List<AbstractBuildParameterFactory> configFactories,
+            List<AbstractBuildParameters> configs,
+            TriggerRateLimit rateLimit,
+            int maxConcurrentPerProject) {
+        this(projects, conditionalTrigger, block, configFactories, configs, rateLimit, maxConcurrentPerProject, false);
+    }
+
+    @DataBoundConstructor
+    public BlockableBuildTriggerConfig(String projects,
+            ConditionalTriggerConfig conditionalTrigger,
+            BlockingBehaviour block,
+            List<AbstractBuildParameterFactory> configFactories,
+            List<AbstractBuildParameters> configs,
+            TriggerRateLimit rateLimit,
+            int maxConcurrentPerProject,
+            boolean dropDuplicates) {
+        super(projects, ResultCondition.ALWAYS, false, configFactories, configs, rateLimit, dropDuplicates);
         this.block = block;
         this.conditionalTrigger = conditionalTrigger;
+        this.maxConcurrentPerProject = Math.max(0, maxConcurrentPerProject);
     }
 
     public BlockingBehaviour getBlock() {
@@ -68,6 +116,27 @@ public class BlockableBuildTriggerConfig extends BuildTriggerConfig {
         return conditionalTrigger;
     }
 
+    public int getMaxConcurrentPerProject() {
+        return maxConcurrentPerProject;
+    }
+
+    /**
+     * Only applies when blocking, as the builds of a non-blocking trigger may
+     * outlive the triggering build.
+     */
+    @Override
+    protected int getMaxInFlight() {
+        return block != null && getRateLimit() != null ? getRateLimit().getMaxInFlight() : 0;
+    }
+
+    /**
+     * Only applies when blocking, see {@link #getMaxInFlight()}.
+     */
+    @Override
+    protected int getMaxInFlightPerProject() {
+        return block != null ? maxConcurrentPerProject : 0;
+    }
+
     public boolean isConditionMet(AbstractBuild build, TaskListener listener,
             EnvVars env) {
         // If no conditional trigger was specified, always return true.
@@ -82,8 +151,15 @@ public class BlockableBuildTriggerConfig extends BuildTriggerConfig {
     public List<Future<AbstractBuild>> perform(AbstractBuild<?, ?> build,
             Launcher launcher, BuildListener listener)
             throws InterruptedException, IOException {
+        return perform(build, launcher, listener, DownstreamWaitSet.of(build));
+    }
+
+    @Override
+    List<Future<AbstractBuild>> perform(AbstractBuild<?, ?> build,
+            Launcher launcher, BuildListener listener, DownstreamWaitSet waitSet)
+            throws InterruptedException, IOException {
         List<Future<AbstractBuild>> r = super
-                .perform(build, launcher, listener);
+                .perform(build, launcher, listener, waitSet);
         if (block == null) {
             return Collections.emptyList();
         }
@@ -94,8 +170,16 @@ public class BlockableBuildTriggerConfig extends BuildTriggerConfig {
     public ListMultimap<AbstractProject, Future<AbstractBuild>> perform2(
             AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
             throws InterruptedException, IOException {
+        return perform2(build, launcher, listener, DownstreamWaitSet.of(build));
+    }
+
+    @Override
+    ListMultimap<AbstractProject, Future<AbstractBuild>> perform2(
+            AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener,
+            DownstreamWaitSet waitSet)
+            throws InterruptedException, IOException {
         ListMultimap<AbstractProject, Future<AbstractBuild>> futures = super
-                .perform2(build, launcher, listener);
+                .perform2(build, launcher, listener, waitSet);
         if (block == null) {
             return ArrayListMultimap.create();
         }
@@ -107,30 +191,116 @@ public class BlockableBuildTriggerConfig extends BuildTriggerConfig {
             AbstractProject project, List<Action> list)
             throws InterruptedException, IOException {
         if (block != null) {
-            while (true) {
-                // if we fail to add the item to the queue, wait and retry.
-                // it also means we have to force quiet period = 0, or else
-                // it'll never leave the queue
-                Future f = project.scheduleBuild2(0, new UpstreamCause(
-                        (Run) build), list.toArray(new Action[list.size()]));
-                // when a project is disabled or the configuration is not yet
-                // saved f will always be null and we'ure caught in a loop,
-                // therefore we need to check for it
-                if (f != null || (f == null && !project.isBuildable())) {
-                    return f;
-                }
-                Thread.sleep(1000);
-            }
+            return scheduleBlocking(build, project, list, DownstreamWaitSet.of(build), true);
         } else {
             return super.schedule(build, project, list);
         }
     }
 
+    /**
+     * Makes a single attempt for each build while holding the queue lock, and
+     * then retries the builds the queue refused one at a time, as waiting for
+     * the queue while holding its lock would never end.
+     */
+    @Override
+    protected void scheduleBatch(AbstractBuild<?, ?> build,
+            List<ScheduleRequest> requests)
+            throws InterruptedException, IOException {
+        scheduleBatch(build, requests, DownstreamWaitSet.of(build));
+    }
+
+    @Override
+    void scheduleBatch(AbstractBuild<?, ?> build,
+            List<ScheduleRequest> requests, DownstreamWaitSet waitSet)
+            throws InterruptedException, IOException {
+        if (block == null) {
+            super.scheduleBatch(build, requests);
+            return;
+        }
+        synchronized (Hudson.getInstance().getQueue()) {
+            for (ScheduleRequest request : requests) {
+                request.future = scheduleBlocking(build, request.project, request.actions, waitSet, false);
+            }
+        }
+        for (ScheduleRequest request : requests) {
+            if (request.future == null && request.project.isBuildable()) {
+                request.future = scheduleBlocking(build, request.project, request.actions, waitSet, true);
+            }
+        }
+    }
+
+    /**
+     * @param waitSet the wait set to mark the build for, or {@code null}.
+     * @param retry whether to keep trying until the queue accepts the build,
+     * rather than making a single attempt.
+     */
+    private Future scheduleBlocking(AbstractBuild<?, ?> build,
+            AbstractProject project, List<Action> list,
+            DownstreamWaitSet waitSet, boolean retry)
+            throws InterruptedException, IOException {
+        DownstreamWaitAction marker = null;
+        if (waitSet != null) {
+            marker = waitSet.newMarker();
+            list = new ArrayList<Action>(list);
+            list.add(marker);
+        }
+        Future f = null;
+        try {
+            if (retry) {
+                f = scheduleUntilAccepted(build, project, list);
+            } else {
+                // quiet period = 0, see scheduleUntilAccepted
+                f = project.scheduleBuild2(0, new UpstreamCause(
+                        (Run) build), list.toArray(new Action[list.size()]));
+            }
+        } finally {
+            if (marker != null) {
+                waitSet.bind(marker, f);
+            }
+        }
+        return f;
+    }
+
+    private Future scheduleUntilAccepted(AbstractBuild<?, ?> build,
+            AbstractProject project, List<Action> list)
+            throws InterruptedException, IOException {
+        long timeout = Hudson.getInstance().getDescriptorByType(TriggerBuilder.DescriptorImpl.class).getScheduleTimeout() * 1000L;
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        long backoff = MIN_RETRY_DELAY;
+        while (true) {
+            long seen = QueueWatcher.getChangeCount(project);
+            // if we fail to add the item to the queue, wait and retry.
+            // it also means we have to force quiet period = 0, or else
+            // it'll never leave the queue
+            Future f = project.scheduleBuild2(0, new UpstreamCause(
+                    (Run) build), list.toArray(new Action[list.size()]));
+            // when a project is disabled or the configuration is not yet
+            // saved f will always be null and we'ure caught in a loop,
+            // therefore we need to check for it
+            if (f != null || (f == null && !project.isBuildable())) {
+                return f;
+            }
+            // the queue refuses duplicates of a waiting item, so retry once a
+            // build of the project has left the queue, or after the backoff
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new AbortException("Gave up scheduling " + project.getFullDisplayName()
+                        + " after " + (timeout / 1000) + " seconds, the queue did not accept the build.");
+            }
+            QueueWatcher.awaitChange(project, seen, Math.min(backoff, remaining));
+            backoff = Math.min(backoff * 2, MAX_RETRY_DELAY);
+        }
+    }
+
     public Collection<Node> getNodes() {
         return Hudson.getInstance().getLabel("asrt").getNodes();
     }
 
     @Extension
     public static class DescriptorImpl extends BuildTriggerConfig.DescriptorImpl {
+
+        public FormValidation doCheckMaxConcurrentPerProject(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
     }
 }
@@ -50,13 +50,23 @@ public class BlockingBehaviour extends AbstractDescribableImpl<BlockingBehaviour
     public final Result unstableThreshold;
     public final Result failureThreshold;
     public boolean ignoreAbortedBuilds = false;
+    /**
+     * Whether to cancel the other builds triggered by the build step as soon
+     * as one of them fails the build step.
+     */
+    public boolean failFast = false;
 
     @DataBoundConstructor
-    public BlockingBehaviour(String buildStepFailureThreshold, String unstableThreshold, String failureThreshold, boolean ignoreAbortedBuilds) {
+    public BlockingBehaviour(String buildStepFailureThreshold, String unstableThreshold, String failureThreshold, boolean ignoreAbortedBuilds, boolean failFast) {
         this.buildStepFailureThreshold = parse(buildStepFailureThreshold);
         this.unstableThreshold = parse(unstableThreshold);
         this.failureThreshold = parse(failureThreshold);
         this.ignoreAbortedBuilds = ignoreAbortedBuilds;
+        this.failFast = failFast;
+    }
+
+    public BlockingBehaviour(String buildStepFailureThreshold, String unstableThreshold, String failureThreshold, boolean ignoreAbortedBuilds) {
+        this(buildStepFailureThreshold, unstableThreshold, failureThreshold, ignoreAbortedBuilds, false);
     }
 
     private Result parse(String t) {
@@ -87,6 +97,10 @@ public class BlockingBehaviour extends AbstractDescribableImpl<BlockingBehaviour
         this.ignoreAbortedBuilds = ignoreAbortedBuilds;
     }
 
+    public boolean isFailFast() {
+        return failFast;
+    }
+
     /**
      * Maps the result of a triggered build to the result of the triggering
      * build step.
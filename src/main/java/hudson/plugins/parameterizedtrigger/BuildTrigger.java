@@ -59,6 +59,7 @@ public class BuildTrigger extends Notifier implements DependecyDeclarer, MatrixA
             EnvVars env = build.getEnvironment(listener);
             build.addAction(new CapturedEnvironmentAction(env));
         } else {
+            FactoryMemo.forget(build);
             for (BuildTriggerConfig config : configs) {
                 config.perform(build, launcher, listener);
             }
@@ -2,8 +2,9 @@ package hudson.plugins.parameterizedtrigger;
 
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.ListMultimap;
-import com.google.common.collect.Lists;
+import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.Launcher;
@@ -13,7 +14,9 @@ import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Action;
 import hudson.model.AutoCompletionCandidates;
+import hudson.model.BooleanParameterValue;
 import hudson.model.BuildListener;
+import hudson.model.Computer;
 import hudson.model.Cause.UpstreamCause;
 import hudson.model.Describable;
 import hudson.model.Descriptor;
@@ -22,52 +25,109 @@ import hudson.model.Item;
 import hudson.model.ItemGroup;
 import hudson.model.Items;
 import hudson.model.Job;
-import hudson.model.ParameterDefinition;
 import hudson.model.ParameterValue;
 import hudson.model.ParametersAction;
-import hudson.model.ParametersDefinitionProperty;
 import hudson.model.Run;
+import hudson.model.RunParameterValue;
+import hudson.model.StringParameterValue;
 import hudson.model.TaskListener;
 import hudson.plugins.parameterizedtrigger.AbstractBuildParameters.DontTriggerException;
 import hudson.tasks.Messages;
 import hudson.util.FormValidation;
+import hudson.util.IOException2;
 
 import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
 public class BuildTriggerConfig implements Describable<BuildTriggerConfig> {
 
+    /**
+     * How often to report progress when scheduling is rate limited, in
+     * milliseconds.
+     */
+    private static final long PROGRESS_INTERVAL = 10000;
+    /**
+     * How many builds are computed ahead of scheduling them.
+     */
+    private static final int BATCH_SIZE = 100;
+
     private final List<AbstractBuildParameters> configs;
     private final List<AbstractBuildParameterFactory> configFactories;
     private String projects;
     private final ResultCondition condition;
     private boolean triggerWithNoParameters;
+    private final TriggerRateLimit rateLimit;
+    /**
+     * Whether to trigger each project only once per distinct set of
+     * parameters. Only the build step offers it, as without parameter
+     * factories there is a single build per project.
+     */
+    private final boolean dropDuplicates;
 
     public BuildTriggerConfig(String projects, ResultCondition condition,
-            boolean triggerWithNoParameters, List<AbstractBuildParameterFactory> configFactories, List<AbstractBuildParameters> configs) {
+            boolean triggerWithNoParameters, List<AbstractBuildParameterFactory> configFactories, List<AbstractBuildParameters> configs,
+            TriggerRateLimit rateLimit, boolean dropDuplicates) {
         this.projects = projects;
         this.condition = condition;
         this.triggerWithNoParameters = triggerWithNoParameters;
         this.configFactories = configFactories;
         this.configs = Util.fixNull(configs);
+        this.rateLimit = rateLimit;
+        this.dropDuplicates = dropDuplicates;
+    }
+
+    public BuildTriggerConfig(String projects, ResultCondition condition,
+            boolean triggerWithNoParameters, List<AbstractBuildParameterFactory> configFactories, List<AbstractBuildParameters> configs,
+            TriggerRateLimit rateLimit) {
+        this(projects, condition, triggerWithNoParameters, configFactories, configs, rateLimit, false);
+    }
+
+    public BuildTriggerConfig(String projects, ResultCondition condition,
+            boolean triggerWithNoParameters, List<AbstractBuildParameterFactory> configFactories, List<AbstractBuildParameters> configs) {
+        this(projects, condition, triggerWithNoParameters, configFactories, configs, null);
+    }
+
+    public BuildTriggerConfig(String projects, ResultCondition condition,
+            boolean triggerWithNoParameters, List<AbstractBuildParameters> configs,
+            TriggerRateLimit rateLimit, boolean dropDuplicates) {
+        this(projects, condition, triggerWithNoParameters, null, configs, rateLimit, dropDuplicates);
     }
 
     @DataBoundConstructor
+    public BuildTriggerConfig(String projects, ResultCondition condition,
+            boolean triggerWithNoParameters, List<AbstractBuildParameters> configs,
+            TriggerRateLimit rateLimit) {
+        this(projects, condition, triggerWithNoParameters, configs, rateLimit, false);
+    }
+
     public BuildTriggerConfig(String projects, ResultCondition condition,
             boolean triggerWithNoParameters, List<AbstractBuildParameters> configs) {
         this(projects, condition, triggerWithNoParameters, null, configs);
@@ -104,6 +164,14 @@ public class BuildTriggerConfig implements Describable<BuildTriggerConfig> {
         return triggerWithNoParameters;
     }
 
+    public TriggerRateLimit getRateLimit() {
+        return rateLimit;
+    }
+
+    public boolean isDropDuplicates() {
+        return dropDuplicates;
+    }
+
     /**
      * @deprecated Use {@link #getProjectList(ItemGroup, EnvVars)}
      */
@@ -147,74 +215,81 @@ public class BuildTriggerConfig implements Describable<BuildTriggerConfig> {
         return projectListString.toString();
     }
 
-    private static ParametersAction mergeParameters(ParametersAction base, ParametersAction overlay) {
-        LinkedHashMap<String, ParameterValue> params = new LinkedHashMap<String, ParameterValue>();
-        for (ParameterValue param : base.getParameters()) {
-            params.put(param.getName(), param);
-        }
-        for (ParameterValue param : overlay.getParameters()) {
-            params.put(param.getName(), param);
-        }
-        return new ParametersAction(params.values().toArray(new ParameterValue[params.size()]));
-    }
-
-    private static ParametersAction getDefaultParameters(AbstractProject<?, ?> project) {
-        ParametersDefinitionProperty property = project.getProperty(ParametersDefinitionProperty.class);
-        if (property == null) {
-            return null;
-        }
-
-        List<ParameterValue> parameters = new ArrayList<ParameterValue>();
-        for (ParameterDefinition pd : property.getParameterDefinitions()) {
-            ParameterValue param = pd.getDefaultParameterValue();
-            if (param != null) {
-                parameters.add(param);
-            }
-        }
-
-        return new ParametersAction(parameters);
-    }
-
     List<Action> getBaseActions(AbstractBuild<?, ?> build, TaskListener listener)
             throws IOException, InterruptedException, DontTriggerException {
         return getBaseActions(configs, build, listener);
     }
 
+    /**
+     * The parameters of all configs are only collected here. They are turned
+     * into a {@link ParametersAction} per downstream build by
+     * {@link #getBuildActions}.
+     */
     List<Action> getBaseActions(Collection<AbstractBuildParameters> configs, AbstractBuild<?, ?> build, TaskListener listener)
             throws IOException, InterruptedException, DontTriggerException {
         List<Action> actions = new ArrayList<Action>();
-        ParametersAction params = null;
+        ParameterMerger params = null;
         for (AbstractBuildParameters config : configs) {
             Action a = config.getAction(build, listener);
             if (a instanceof ParametersAction) {
-                params = params == null ? (ParametersAction) a
-                        : mergeParameters(params, (ParametersAction) a);
+                if (params == null) {
+                    params = new ParameterMerger();
+                }
+                params.add((ParametersAction) a);
             } else if (a != null) {
                 actions.add(a);
             }
         }
         if (params != null) {
-            actions.add(params);
+            actions.add(new ParameterMerger.Pending(Collections.unmodifiableList(params.getValues())));
         }
         return actions;
     }
 
+    /**
+     * @return the actions to schedule a build of the project with, including
+     * a single {@link ParametersAction} that has the parameters of the
+     * configs on top of the default parameters of the project.
+     */
     List<Action> getBuildActions(List<Action> baseActions, AbstractProject project) {
-        List<Action> actions = new ArrayList<Action>(baseActions);
+        return getBuildActions(baseActions, Collections.<Action>emptyList(), project);
+    }
 
-        ParametersAction defaultParameters = getDefaultParameters(project);
+    /**
+     * Same as {@link #getBuildActions(List, AbstractProject)}, for base
+     * actions that come in two layers, the parameters of the second one
+     * overriding those of the first.
+     */
+    List<Action> getBuildActions(List<Action> sharedActions, List<Action> ownActions, AbstractProject project) {
+        List<Action> actions = new ArrayList<Action>(sharedActions.size() + ownActions.size() + 1);
+        ParameterMerger params = new ParameterMerger();
+        List<ParameterValue> defaultParameters = DefaultParametersCache.getDefaultParameters(project);
         if (defaultParameters != null) {
-            Action a = null;
-            for (ListIterator<Action> it = actions.listIterator(); it.hasNext();) {
-                if ((a = it.next()) instanceof ParametersAction) {
-                    it.set(mergeParameters(defaultParameters, (ParametersAction) a));
-                    break;
+            params.add(defaultParameters);
+        }
+        // the merged parameters take the place of the first ones, or come
+        // last if there are only the defaults
+        int position = -1;
+        for (List<Action> layer : Arrays.asList(sharedActions, ownActions)) {
+            for (Action a : layer) {
+                if (a instanceof ParameterMerger.Pending) {
+                    params.add(((ParameterMerger.Pending) a).getValues());
+                } else if (a instanceof ParametersAction) {
+                    params.add((ParametersAction) a);
+                } else {
+                    actions.add(a);
+                    continue;
+                }
+                if (position < 0) {
+                    position = actions.size();
                 }
-            }
-            if (!(a instanceof ParametersAction)) {
-                actions.add(defaultParameters);
             }
         }
+        if (position >= 0) {
+            actions.add(position, params.toAction());
+        } else if (defaultParameters != null) {
+            actions.add(params.toAction());
+        }
         return actions;
     }
 
@@ -224,25 +299,23 @@ public class BuildTriggerConfig implements Describable<BuildTriggerConfig> {
      */
     public List<Future<AbstractBuild>> perform(AbstractBuild<?, ?> build, Launcher launcher,
             BuildListener listener) throws InterruptedException, IOException {
+        return perform(build, launcher, listener, null);
+    }
+
+    /**
+     * @param waitSet the wait set the builds are waited for with, which takes
+     * over the scheduling of builds that have to wait for room, or
+     * {@code null}.
+     */
+    List<Future<AbstractBuild>> perform(AbstractBuild<?, ?> build, Launcher launcher,
+            BuildListener listener, DownstreamWaitSet waitSet) throws InterruptedException, IOException {
         EnvVars env = build.getEnvironment(listener);
         env.overrideAll(build.getBuildVariables());
 
         try {
             if (condition.isMet(build.getResult())) {
-                List<Future<AbstractBuild>> futures = new ArrayList<Future<AbstractBuild>>();
-
-                for (List<AbstractBuildParameters> addConfigs : getDynamicBuildParameters(build, listener)) {
-                    List<Action> actions = getBaseActions(
-                            ImmutableList.<AbstractBuildParameters>builder().addAll(configs).addAll(addConfigs).build(),
-                            build, listener);
-                    for (AbstractProject project : getProjectList(build.getProject().getParent(), env)) {
-                        List<Action> list = getBuildActions(actions, project);
-
-                        futures.add(schedule(build, project, list));
-                    }
-                }
-
-                return futures;
+                return new ArrayList<Future<AbstractBuild>>(
+                        scheduleAll(build, listener, new ScheduleRequests(build, listener, env), waitSet).values());
             }
         } catch (DontTriggerException e) {
             // don't trigger on this configuration
@@ -251,62 +324,748 @@ public class BuildTriggerConfig implements Describable<BuildTriggerConfig> {
     }
 
     public ListMultimap<AbstractProject, Future<AbstractBuild>> perform2(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+        return perform2(build, launcher, listener, null);
+    }
+
+    /**
+     * @see #perform(AbstractBuild, Launcher, BuildListener, DownstreamWaitSet)
+     */
+    ListMultimap<AbstractProject, Future<AbstractBuild>> perform2(AbstractBuild<?, ?> build, Launcher launcher,
+            BuildListener listener, DownstreamWaitSet waitSet) throws InterruptedException, IOException {
         EnvVars env = build.getEnvironment(listener);
         env.overrideAll(build.getBuildVariables());
 
         try {
             if (getCondition().isMet(build.getResult())) {
-                ListMultimap<AbstractProject, Future<AbstractBuild>> futures = ArrayListMultimap.create();
+                return scheduleAll(build, listener, new ScheduleRequests(build, listener, env), waitSet);
+            }
+        } catch (DontTriggerException e) {
+            // don't trigger on this configuration
+        }
+        return ArrayListMultimap.create();
+    }
+
+    protected Future schedule(AbstractBuild<?, ?> build, AbstractProject project, List<Action> list) throws InterruptedException, IOException {
+        return project.scheduleBuild2(project.getQuietPeriod(),
+                new UpstreamCause((Run) build),
+                list.toArray(new Action[list.size()]));
+    }
+
+    /**
+     * Same as {@link #scheduleAll(AbstractBuild, TaskListener, ScheduleRequests, DownstreamWaitSet)},
+     * without a wait set.
+     */
+    protected ListMultimap<AbstractProject, Future<AbstractBuild>> scheduleAll(AbstractBuild<?, ?> build, TaskListener listener, ScheduleRequests requests) throws InterruptedException, IOException {
+        return scheduleAll(build, listener, requests, null);
+    }
+
+    /**
+     * Puts the requested builds in the queue as they are computed, a batch at
+     * a time. Unless the rate or the number of builds in flight is limited, by
+     * {@link #getRateLimit()}, {@link #getMaxInFlightPerProject()} or
+     * globally, each batch goes to {@link #scheduleBatch} right away.
+     *
+     * <p>
+     * Builds that have to wait for earlier ones to complete are left to the
+     * wait set, which schedules them as it processes the completions.
+     *
+     * @return the futures of the builds scheduled before returning, in the
+     * order they were scheduled.
+     */
+    ListMultimap<AbstractProject, Future<AbstractBuild>> scheduleAll(AbstractBuild<?, ?> build, TaskListener listener,
+            ScheduleRequests requests, DownstreamWaitSet waitSet) throws InterruptedException, IOException {
+        // only the futures, the requests with their actions are dropped once scheduled
+        ListMultimap<AbstractProject, Future<AbstractBuild>> scheduled = LinkedListMultimap.create();
+        boolean deferred = false;
+        try {
+            Admission admission = new Admission(build, listener, requests, waitSet);
+            if (!admission.resume(null, scheduled)) {
+                if (waitSet == null) {
+                    // the admission only holds builds back when it can defer them
+                    throw new IllegalStateException("Cannot defer the builds of " + projects + " without a wait set");
+                }
+                waitSet.defer(this, admission);
+                deferred = true;
+            }
+        } finally {
+            if (!deferred) {
+                // stops a producer of parameter sets we did not read to the end
+                requests.close();
+            }
+        }
+        return scheduled;
+    }
+
+    /**
+     * Waits until the rate limits allow one more build, for the dependency
+     * graph, which puts the builds of this trigger in the queue one at a
+     * time.
+     */
+    void awaitRateLimit() throws InterruptedException {
+        TokenBucket bucket = rateLimit != null ? rateLimit.getBucket() : null;
+        if (bucket != null) {
+            bucket.acquire(1);
+        }
+        TokenBucket globalBucket = Hudson.getInstance().getDescriptorByType(TriggerBuilder.DescriptorImpl.class).getGlobalBucket();
+        if (globalBucket != null) {
+            globalBucket.acquire(1);
+        }
+    }
+
+    /**
+     * @return how many builds one build of this trigger may have queued or
+     * running at once, 0 for no limit. Builds of a non-blocking trigger may
+     * outlive the triggering build, so they are never held back.
+     */
+    protected int getMaxInFlight() {
+        return 0;
+    }
+
+    /**
+     * @return how many builds of each project one build of this trigger may
+     * have queued or running at once, 0 for no limit.
+     */
+    protected int getMaxInFlightPerProject() {
+        return 0;
+    }
+
+    /**
+     * Schedules the builds of one build of this trigger, as far as the rate
+     * limits and the caps on builds in flight allow. With a wait set, it
+     * returns rather than waiting for either, and the wait set resumes it
+     * when a build completes or the rate limits have room again.
+     */
+    private final class Admission implements DownstreamWaitSet.Deferred {
+
+        private final AbstractBuild<?, ?> build;
+        private final TaskListener listener;
+        private final ScheduleRequests requests;
+        private final DownstreamWaitSet waitSet;
+        /**
+         * Whether it may return before all builds are scheduled, to be
+         * resumed by the wait set.
+         */
+        private final boolean deferrable;
+        private final TokenBucket bucket;
+        private final TokenBucket globalBucket;
+        private final int maxInFlight;
+        private final int maxPerProject;
+        private final boolean limited;
+        /**
+         * The builds scheduled here that are still queued or running, if
+         * capped.
+         */
+        private final ListMultimap<AbstractProject, Future> inFlight = ArrayListMultimap.create();
+        private final Set<ScheduleRequest> pending = new LinkedHashSet<ScheduleRequest>();
+        private final Set<String> seen;
+        private boolean uncomparable;
+        private int dropped;
+        private int scheduledCount;
+        private long lastReport = System.currentTimeMillis();
+        private long resumeTime = Long.MAX_VALUE;
 
-                for (List<AbstractBuildParameters> addConfigs : getDynamicBuildParameters(build, listener)) {
-                    List<Action> actions = getBaseActions(ImmutableList.<AbstractBuildParameters>builder().addAll(configs).addAll(addConfigs).build(), build, listener);
-                    for (AbstractProject project : getProjectList(build.getProject().getParent(), env)) {
-                        List<Action> list = getBuildActions(actions, project);
+        Admission(AbstractBuild<?, ?> build, TaskListener listener, ScheduleRequests requests, DownstreamWaitSet waitSet) {
+            this.build = build;
+            this.listener = listener;
+            this.requests = requests;
+            this.waitSet = waitSet;
+            this.deferrable = waitSet != null;
+            this.bucket = rateLimit != null ? rateLimit.getBucket() : null;
+            this.globalBucket = Hudson.getInstance().getDescriptorByType(TriggerBuilder.DescriptorImpl.class).getGlobalBucket();
+            int max = getMaxInFlight();
+            int perProject = getMaxInFlightPerProject();
+            if (rateLimit != null && rateLimit.getMaxInFlight() > 0 && max == 0) {
+                listener.getLogger().println("[parameterized-trigger] The limit of builds in flight only applies"
+                        + " to blocking triggers, not limiting the builds of " + projects);
+            }
+            if ((max > 0 || perProject > 0) && !deferrable) {
+                listener.getLogger().println("[parameterized-trigger] Not waiting for the triggered builds,"
+                        + " not limiting the builds in flight of " + projects);
+                max = perProject = 0;
+            }
+            this.maxInFlight = max;
+            this.maxPerProject = perProject;
+            this.limited = bucket != null || globalBucket != null || max > 0 || perProject > 0;
+            this.seen = dropDuplicates ? new HashSet<String>() : null;
+        }
+
+        public boolean resume(Future completed, ListMultimap<AbstractProject, Future<AbstractBuild>> scheduled) throws InterruptedException, IOException {
+            boolean done = true;
+            try {
+                done = admit(completed, scheduled);
+                return done;
+            } finally {
+                if (done) {
+                    requests.close();
+                }
+            }
+        }
 
-                        futures.put(project, schedule(build, project, list));
+        public long getResumeTime() {
+            return resumeTime;
+        }
+
+        private boolean admit(Future completed, ListMultimap<AbstractProject, Future<AbstractBuild>> scheduled) throws InterruptedException, IOException {
+            resumeTime = Long.MAX_VALUE;
+            if (completed != null) {
+                inFlight.values().remove(completed);
+            }
+            while (true) {
+                ScheduleRequest next;
+                while (pending.size() < BATCH_SIZE && (next = requests.next()) != null) {
+                    if (seen != null) {
+                        String hash = next.getParametersHash();
+                        if (hash == null && !uncomparable) {
+                            listener.getLogger().println("[parameterized-trigger] Some builds of " + projects
+                                    + " have parameters or actions that cannot be compared, not dropping them as duplicates");
+                            uncomparable = true;
+                        } else if (hash != null && !seen.add(hash)) {
+                            dropped++;
+                            continue;
+                        }
                     }
+                    pending.add(next);
+                }
+                if (pending.isEmpty()) {
+                    if (dropped > 0) {
+                        listener.getLogger().println("[parameterized-trigger] Dropped " + dropped
+                                + " duplicate parameter set(s) for " + projects);
+                    }
+                    return true;
+                }
+
+                List<ScheduleRequest> batch;
+                if (!limited) {
+                    batch = new ArrayList<ScheduleRequest>(pending);
+                } else {
+                    // parameter sets beyond the caps wait here rather than in the queue
+                    batch = getAdmissible();
+                    if (batch.isEmpty()) {
+                        return false;
+                    }
+                    int n = batch.size();
+                    if (bucket != null) {
+                        // a shared trigger thread must not sleep here
+                        n = deferrable ? bucket.tryAcquire(n) : bucket.acquire(n);
+                    }
+                    if (globalBucket != null && n > 0) {
+                        int granted = deferrable ? globalBucket.tryAcquire(n) : globalBucket.acquire(n);
+                        if (bucket != null) {
+                            bucket.refund(n - granted);
+                        }
+                        n = granted;
+                    }
+                    if (n == 0) {
+                        long delay = Math.max(bucket != null ? bucket.getDelay() : 0,
+                                globalBucket != null ? globalBucket.getDelay() : 0);
+                        resumeTime = System.currentTimeMillis() + Math.max(1, delay);
+                        return false;
+                    }
+                    batch = batch.subList(0, n);
+                }
+
+                try {
+                    scheduleBatch(build, batch, waitSet);
+                } catch (AbortException e) {
+                    cancelScheduled(batch, scheduled);
+                    throw e;
+                }
+                for (ScheduleRequest request : batch) {
+                    pending.remove(request);
+                    if (request.future != null && (maxInFlight > 0 || maxPerProject > 0)) {
+                        inFlight.put(request.project, request.future);
+                    }
+                    scheduled.put(request.project, request.future);
+                }
+                scheduledCount += batch.size();
+
+                long now = System.currentTimeMillis();
+                if (limited && (pending.isEmpty() || now - lastReport >= PROGRESS_INTERVAL)) {
+                    long total = requests.size();
+                    listener.getLogger().println("[parameterized-trigger] Scheduled " + scheduledCount
+                            + (total < 0 ? "" : " of " + total) + " builds of " + projects);
+                    lastReport = now;
                 }
-                return futures;
             }
-        } catch (DontTriggerException e) {
-            // don't trigger on this configuration
         }
-        return ArrayListMultimap.create();
+
+        /**
+         * Cancels the builds scheduled by this call when giving up on the
+         * rest, as nobody would wait for them.
+         */
+        private void cancelScheduled(List<ScheduleRequest> batch,
+                ListMultimap<AbstractProject, Future<AbstractBuild>> scheduled) {
+            int count = 0;
+            for (ScheduleRequest request : batch) {
+                if (request.future != null && DownstreamWaitSet.cancel(request.project, request.future)) {
+                    count++;
+                }
+            }
+            for (Map.Entry<AbstractProject, Future<AbstractBuild>> e : scheduled.entries()) {
+                if (e.getValue() != null && DownstreamWaitSet.cancel(e.getKey(), e.getValue())) {
+                    count++;
+                }
+            }
+            if (count > 0) {
+                listener.getLogger().println("[parameterized-trigger] Cancelled " + count
+                        + " build(s) of " + projects + " that were already scheduled.");
+            }
+        }
+
+        /**
+         * @return the pending requests that may be scheduled now, in order.
+         */
+        private List<ScheduleRequest> getAdmissible() {
+            // builds that will not report their completion, such as
+            // cancelled queue items
+            for (Iterator<Future> it = inFlight.values().iterator(); it.hasNext();) {
+                if (it.next().isDone()) {
+                    it.remove();
+                }
+            }
+
+            List<ScheduleRequest> admissible = new ArrayList<ScheduleRequest>();
+            Map<AbstractProject, Integer> counts = new HashMap<AbstractProject, Integer>();
+            int free = maxInFlight > 0 ? maxInFlight - inFlight.size() : pending.size();
+            for (ScheduleRequest request : pending) {
+                if (admissible.size() >= free) {
+                    break;
+                }
+                if (maxPerProject > 0) {
+                    Integer count = counts.get(request.project);
+                    if (count == null) {
+                        count = inFlight.get(request.project).size();
+                    }
+                    if (count >= maxPerProject) {
+                        continue;
+                    }
+                    counts.put(request.project, count + 1);
+                }
+                admissible.add(request);
+            }
+            return admissible;
+        }
+
+        public void abandon() {
+            pending.clear();
+            inFlight.clear();
+            requests.close();
+        }
+    }
+
+    /**
+     * Puts a batch of builds in the queue while holding the queue lock, so
+     * that the queue takes all of them in at once instead of reacting to each
+     * item. Each item is still scheduled by {@link #schedule}.
+     */
+    protected void scheduleBatch(AbstractBuild<?, ?> build, List<ScheduleRequest> requests) throws InterruptedException, IOException {
+        synchronized (Hudson.getInstance().getQueue()) {
+            for (ScheduleRequest request : requests) {
+                request.future = schedule(build, request.project, request.actions);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #scheduleBatch(AbstractBuild, List)}, for builds waited
+     * for with the given wait set, if any.
+     */
+    void scheduleBatch(AbstractBuild<?, ?> build, List<ScheduleRequest> requests, DownstreamWaitSet waitSet) throws InterruptedException, IOException {
+        scheduleBatch(build, requests);
+    }
+
+    /**
+     * The builds to schedule: one per project and combination of dynamic build
+     * parameters. They are computed one at a time, so that memory does not
+     * grow with the number of combinations.
+     */
+    protected final class ScheduleRequests {
+
+        private final AbstractBuild<?, ?> build;
+        private final BuildListener listener;
+        private final List<AbstractProject> projectList;
+        private final Combinations combinations;
+        /**
+         * Actions of the static configs, shared by all combinations.
+         */
+        private List<Action> baseActions;
+        /**
+         * Actions of the factory parameters of the current combination, for
+         * all projects, or {@code null} once there are no more builds.
+         */
+        private List<Action> actions;
+        private int projectIndex;
+
+        /**
+         * @throws DontTriggerException if the first combination must not be
+         * triggered, in which case the config triggers nothing.
+         */
+        @SuppressWarnings("unchecked")
+        ScheduleRequests(AbstractBuild<?, ?> build, BuildListener listener, EnvVars env)
+                throws DontTriggerException, IOException, InterruptedException {
+            this.build = build;
+            this.listener = listener;
+            this.projectList = getProjectList(build.getProject().getParent(), env);
+            List<List<AbstractBuildParameters>> factors = new ArrayList<List<AbstractBuildParameters>>();
+            Iterator<AbstractBuildParameters> last = null;
+            long lastSize = 0;
+            for (Object parameters : evaluateFactories(build, listener)) {
+                if (parameters instanceof Iterator) {
+                    last = (Iterator<AbstractBuildParameters>) parameters;
+                    lastSize = -1;
+                } else {
+                    factors.add((List<AbstractBuildParameters>) parameters);
+                }
+            }
+            if (last == null && !factors.isEmpty()) {
+                List<AbstractBuildParameters> factor = factors.remove(factors.size() - 1);
+                last = factor.iterator();
+                lastSize = factor.size();
+            }
+            this.combinations = new Combinations(factors, last, lastSize);
+            boolean started = false;
+            try {
+                if (combinations.hasNext()) {
+                    // the static configs do not depend on the combination, so
+                    // they are only evaluated once
+                    baseActions = ImmutableList.copyOf(getBaseActions(configs, build, listener));
+                    actions = getCombinationActions(combinations.next());
+                }
+                started = true;
+            } finally {
+                if (!started) {
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Stops computing builds, for when not all of them get scheduled.
+         */
+        public void close() {
+            combinations.close();
+        }
+
+        /**
+         * @return the total number of builds to schedule, or -1 if it is not
+         * known in advance.
+         */
+        public long size() {
+            long combinationCount = combinations.size();
+            return combinationCount < 0 ? -1 : combinationCount * projectList.size();
+        }
+
+        /**
+         * @return the next build to schedule, or {@code null} if there are no
+         * more.
+         */
+        public ScheduleRequest next() throws IOException, InterruptedException {
+            if (actions == null || projectList.isEmpty()) {
+                return null;
+            }
+            if (projectIndex == projectList.size()) {
+                if (!combinations.hasNext()) {
+                    actions = null;
+                    return null;
+                }
+                try {
+                    actions = getCombinationActions(combinations.next());
+                } catch (DontTriggerException e) {
+                    // earlier combinations may already be running
+                    listener.getLogger().println("Not triggering the remaining builds of " + projects);
+                    actions = null;
+                    close();
+                    return null;
+                }
+                projectIndex = 0;
+            }
+            AbstractProject project = projectList.get(projectIndex++);
+            return new ScheduleRequest(project, getBuildActions(baseActions, actions, project));
+        }
+
+        private List<Action> getCombinationActions(List<AbstractBuildParameters> addConfigs)
+                throws DontTriggerException, IOException, InterruptedException {
+            if (addConfigs.isEmpty()) {
+                return Collections.emptyList();
+            }
+            return getBaseActions(addConfigs, build, listener);
+        }
     }
 
     /**
-     * @return Inner list represents a set of build parameters used together for
-     * one invocation of a project, and outer list represents multiple
-     * invocations of the same project.
+     * Gets the parameters of all factories. They often wait on a node, so
+     * with several factories they are all evaluated at once.
+     *
+     * @return for each factory in order, a random access list of its
+     * parameters, or for the last one possibly an iterator over them.
+     * @throws DontTriggerException if a factory throws it, the first one in
+     * the configured order winning.
      */
-    private List<List<AbstractBuildParameters>> getDynamicBuildParameters(AbstractBuild<?, ?> build, BuildListener listener) throws DontTriggerException, IOException, InterruptedException {
+    private List<Object> evaluateFactories(final AbstractBuild<?, ?> build, final TaskListener listener)
+            throws DontTriggerException, IOException, InterruptedException {
+        List<Object> results = new ArrayList<Object>();
         if (configFactories == null || configFactories.isEmpty()) {
-            return ImmutableList.<List<AbstractBuildParameters>>of(ImmutableList.<AbstractBuildParameters>of());
-        } else {
-            // this code is building the combinations of all AbstractBuildParameters reported from all factories
-            List<List<AbstractBuildParameters>> dynamicBuildParameters = Lists.newArrayList();
-            dynamicBuildParameters.add(Collections.<AbstractBuildParameters>emptyList());
-            for (AbstractBuildParameterFactory configFactory : configFactories) {
-                List<List<AbstractBuildParameters>> newDynParameters = Lists.newArrayList();
-                for (AbstractBuildParameters config : configFactory.getParameters(build, listener)) {
-                    for (List<AbstractBuildParameters> dynamicBuildParameter : dynamicBuildParameters) {
-                        newDynParameters.add(
-                                ImmutableList.<AbstractBuildParameters>builder()
-                                .addAll(dynamicBuildParameter)
-                                .add(config)
-                                .build());
+            return results;
+        }
+        final int lastIndex = configFactories.size() - 1;
+        if (lastIndex == 0) {
+            results.add(evaluateFactory(configFactories.get(0), true, build, listener));
+            return results;
+        }
+
+        final SecurityContext context = SecurityContextHolder.getContext();
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int i = 0; i <= lastIndex; i++) {
+            final AbstractBuildParameterFactory configFactory = configFactories.get(i);
+            final boolean last = i == lastIndex;
+            futures.add(Computer.threadPoolForRemoting.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    SecurityContext old = SecurityContextHolder.getContext();
+                    SecurityContextHolder.setContext(context);
+                    try {
+                        return evaluateFactory(configFactory, last, build, listener);
+                    } finally {
+                        SecurityContextHolder.setContext(old);
                     }
                 }
-                dynamicBuildParameters = newDynParameters;
+            }));
+        }
+        boolean succeeded = false;
+        try {
+            for (Future<Object> f : futures) {
+                try {
+                    results.add(f.get());
+                } catch (ExecutionException e) {
+                    Throwable t = e.getCause();
+                    if (t instanceof DontTriggerException) {
+                        throw (DontTriggerException) t;
+                    } else if (t instanceof IOException) {
+                        throw (IOException) t;
+                    } else if (t instanceof InterruptedException) {
+                        throw (InterruptedException) t;
+                    } else if (t instanceof RuntimeException) {
+                        throw (RuntimeException) t;
+                    } else if (t instanceof Error) {
+                        throw (Error) t;
+                    }
+                    throw new IOException2(t);
+                }
+            }
+            succeeded = true;
+        } finally {
+            if (!succeeded) {
+                // stop the others once one has failed
+                for (Future<Object> f : futures) {
+                    f.cancel(true);
+                }
+                closeStreams(futures);
             }
-            return dynamicBuildParameters;
         }
+        return results;
     }
 
-    protected Future schedule(AbstractBuild<?, ?> build, AbstractProject project, List<Action> list) throws InterruptedException, IOException {
-        return project.scheduleBuild2(project.getQuietPeriod(),
-                new UpstreamCause((Run) build),
-                list.toArray(new Action[list.size()]));
+    /**
+     * Stops the producers of the parameter streams that factories evaluated
+     * by {@link #evaluateFactory} returned.
+     */
+    private static void closeStreams(List<Future<Object>> futures) {
+        for (Future<Object> f : futures) {
+            if (f.isDone() && !f.isCancelled()) {
+                try {
+                    closeQuietly(f.get());
+                } catch (Exception e) {
+                    // failed, so there is nothing to close
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(Object o) {
+        if (o instanceof Closeable) {
+            try {
+                ((Closeable) o).close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static Object evaluateFactory(AbstractBuildParameterFactory configFactory, boolean last,
+            AbstractBuild<?, ?> build, TaskListener listener)
+            throws DontTriggerException, IOException, InterruptedException {
+        if (last) {
+            // the last factory varies slowest, so its parameters are only needed once
+            Iterator<AbstractBuildParameters> parameters = configFactory.streamParameters(build, listener);
+            if (parameters != null) {
+                return parameters;
+            }
+        }
+        List<AbstractBuildParameters> parameters = FactoryMemo.getParameters(configFactory, build, listener);
+        // factories may compute their parameters as they are requested
+        return parameters instanceof RandomAccess ? parameters : new ArrayList<AbstractBuildParameters>(parameters);
+    }
+
+    /**
+     * Iterates over the cartesian product of the parameters reported by the
+     * factories, the parameters of the first factory varying fastest. Only
+     * the current position is kept, and the parameters of the last factory,
+     * which vary slowest, are consumed as the iteration proceeds.
+     */
+    private static final class Combinations implements Iterator<List<AbstractBuildParameters>> {
+
+        private final List<List<AbstractBuildParameters>> factors;
+        /**
+         * Parameters of the last factory, or {@code null} if there are no
+         * factories.
+         */
+        private final Iterator<AbstractBuildParameters> last;
+        private final long size;
+        private final int[] indices;
+        private AbstractBuildParameters lastValue;
+        private boolean hasNext = true;
+
+        /**
+         * @param lastSize number of parameters {@code last} produces, or -1
+         * if unknown.
+         */
+        Combinations(List<List<AbstractBuildParameters>> factors, Iterator<AbstractBuildParameters> last, long lastSize) {
+            this.factors = factors;
+            this.last = last;
+            this.indices = new int[factors.size()];
+            long size = lastSize;
+            for (List<AbstractBuildParameters> factor : factors) {
+                if (factor.isEmpty()) {
+                    hasNext = false;
+                }
+                size *= factor.size();
+            }
+            this.size = last == null ? 1 : lastSize < 0 ? -1 : size;
+            if (hasNext && last != null) {
+                hasNext = last.hasNext();
+                if (hasNext) {
+                    lastValue = last.next();
+                }
+            }
+        }
+
+        long size() {
+            return size;
+        }
+
+        /**
+         * Stops the producer of the parameters of the last factory, if it
+         * streams them.
+         */
+        void close() {
+            hasNext = false;
+            closeQuietly(last);
+        }
+
+        public boolean hasNext() {
+            return hasNext;
+        }
+
+        public List<AbstractBuildParameters> next() {
+            if (!hasNext) {
+                throw new NoSuchElementException();
+            }
+            List<AbstractBuildParameters> combination = new ArrayList<AbstractBuildParameters>(factors.size() + 1);
+            for (int i = 0; i < indices.length; i++) {
+                combination.add(factors.get(i).get(indices[i]));
+            }
+            if (last != null) {
+                combination.add(lastValue);
+            }
+
+            for (int i = 0; i < indices.length; i++) {
+                if (++indices[i] < factors.get(i).size()) {
+                    return combination;
+                }
+                indices[i] = 0;
+            }
+            hasNext = last != null && last.hasNext();
+            if (hasNext) {
+                lastValue = last.next();
+            }
+            return combination;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * A build to put in the queue, and the future of that build once
+     * scheduled.
+     */
+    protected static final class ScheduleRequest {
+
+        public final AbstractProject project;
+        public final List<Action> actions;
+        public Future future;
+
+        public ScheduleRequest(AbstractProject project, List<Action> actions) {
+            this.project = project;
+            this.actions = actions;
+        }
+
+        /**
+         * @return a hash of the project and of its parameters, in a canonical
+         * form, which is the same for requests that trigger the same build,
+         * or {@code null} if the request has parameters or actions whose
+         * value is not known to be comparable.
+         */
+        String getParametersHash() {
+            List<String> values = new ArrayList<String>();
+            for (Action a : actions) {
+                if (!(a instanceof ParametersAction)) {
+                    // such as the revision to build, which may differ
+                    return null;
+                }
+                for (ParameterValue v : ((ParametersAction) a).getParameters()) {
+                    String value = canonicalValue(v);
+                    if (value == null) {
+                        return null;
+                    }
+                    values.add(v.getClass().getName() + '\0' + v.getName() + '\0' + value);
+                }
+            }
+            Collections.sort(values);
+
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                digest.update(project.getFullName().getBytes("UTF-8"));
+                for (String value : values) {
+                    digest.update((byte) 0);
+                    digest.update(value.getBytes("UTF-8"));
+                }
+                return Util.toHexString(digest.digest());
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e);
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        /**
+         * @return the value of the parameter, or {@code null} for types
+         * whose value cannot be read, as their {@code toString()} may not
+         * show it or may include an identity hash.
+         */
+        private static String canonicalValue(ParameterValue v) {
+            if (v instanceof StringParameterValue) {
+                // including text parameters
+                return ((StringParameterValue) v).value;
+            }
+            if (v instanceof BooleanParameterValue) {
+                return String.valueOf(((BooleanParameterValue) v).value);
+            }
+            if (v instanceof RunParameterValue) {
+                return ((RunParameterValue) v).getRunId();
+            }
+            return null;
+        }
     }
 
     public boolean onJobRenamed(String oldName, String newName) {
@@ -1,22 +1,31 @@
 package hudson.plugins.parameterizedtrigger;
 
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Lists;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.Util;
 import hudson.model.AbstractBuild;
+import hudson.model.Action;
 import hudson.model.Descriptor;
+import hudson.model.Hudson;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.StringParameterValue;
 import hudson.model.TaskListener;
 import hudson.util.FormValidation;
 import hudson.util.VariableResolver;
 import org.apache.commons.lang.StringUtils;
+import org.apache.tools.ant.filters.StringInputStream;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A BuildParameterFactory generating Predefined Parameters for a counter
@@ -27,6 +36,7 @@ public class CounterBuildParameterFactory extends AbstractBuildParameterFactory
     private final String to;
     private final String step;
     private final String paramExpr;
+    private transient volatile CountTemplate template;
 
     public CounterBuildParameterFactory(long from, long to, long step, String paramExpr) {
         this(Long.toString(from), Long.toString(to), Long.toString(step), paramExpr);
@@ -44,15 +54,14 @@ public class CounterBuildParameterFactory extends AbstractBuildParameterFactory
     public List<AbstractBuildParameters> getParameters(AbstractBuild<?, ?> build, TaskListener listener) throws IOException, InterruptedException, AbstractBuildParameters.DontTriggerException {
         EnvVars envVars = build.getEnvironment(listener);
 
-        long fromNum = Long.valueOf(envVars.expand(from));
-        long toNum = Long.valueOf(envVars.expand(to));
-        long stepNum = Long.valueOf(envVars.expand(step));
+        long fromNum = Long.parseLong(envVars.expand(from));
+        long toNum = Long.parseLong(envVars.expand(to));
+        long stepNum = Long.parseLong(envVars.expand(step));
 
-        ArrayList<AbstractBuildParameters> params = Lists.newArrayList();
         int upDown = Long.signum(toNum - fromNum);
-
+        long count;
         if (upDown == 0) {
-            params.add(getParameterForCount(fromNum));
+            count = 1;
         } else {
             if (stepNum == 0) {
                 throw new RuntimeException(Messages.CounterBuildParameterFactory_CountingWillNotTerminate());
@@ -60,17 +69,155 @@ public class CounterBuildParameterFactory extends AbstractBuildParameterFactory
             if (upDown * stepNum < 0) {
                 throw new RuntimeException(Messages.CounterBuildParameterFactory_CountingWillNotTerminate());
             }
+            count = (toNum - fromNum) / stepNum + 1;
+        }
+        if (count > Integer.MAX_VALUE) {
+            throw new RuntimeException("Counting from " + fromNum + " to " + toNum + " by " + stepNum + " produces too many builds");
+        }
+        return new CountList(getTemplate(), fromNum, stepNum, (int) count);
+    }
+
+    @Override
+    public String getMemoKey(AbstractBuild<?, ?> build, TaskListener listener) throws IOException, InterruptedException {
+        EnvVars envVars = build.getEnvironment(listener);
+        return envVars.expand(from) + '\0' + envVars.expand(to) + '\0' + envVars.expand(step) + '\0' + paramExpr;
+    }
+
+    private CountTemplate getTemplate() throws IOException {
+        CountTemplate t = template;
+        if (t == null) {
+            template = t = new CountTemplate(paramExpr);
+        }
+        return t;
+    }
+
+    /**
+     * The parameters for each count, created as they are requested.
+     */
+    private static final class CountList extends AbstractList<AbstractBuildParameters> implements RandomAccess {
 
-            for (Long i = fromNum; upDown * i <= upDown * toNum; i += stepNum) {
-                params.add(getParameterForCount(i));
+        private final CountTemplate template;
+        private final long from;
+        private final long step;
+        private final int size;
+
+        CountList(CountTemplate template, long from, long step, int size) {
+            this.template = template;
+            this.from = from;
+            this.step = step;
+            this.size = size;
+        }
+
+        @Override
+        public AbstractBuildParameters get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException(Integer.toString(index));
             }
+            return new CountParameters(template, from + index * step);
+        }
+
+        @Override
+        public int size() {
+            return size;
         }
-        return params;
     }
 
-    private PredefinedBuildParameters getParameterForCount(Long i) {
-        String stringWithCount = Util.replaceMacro(paramExpr, ImmutableMap.of("COUNT", i.toString()));
-        return new PredefinedBuildParameters(stringWithCount);
+    /**
+     * {@link #paramExpr} parsed once, with the places where {@code $COUNT} or
+     * {@code ${COUNT}} appear in the keys and values.
+     */
+    static final class CountTemplate {
+
+        private static final Pattern VARIABLE = Pattern.compile("\\$([A-Za-z0-9_]+|\\{[A-Za-z0-9_.]+\\})");
+        private final String paramExpr;
+        /**
+         * Literal pieces of each key and value, to be joined with the count.
+         */
+        private final String[][] keys;
+        private final String[][] values;
+
+        CountTemplate(String paramExpr) throws IOException {
+            this.paramExpr = paramExpr;
+            // in the order they are written, like the other parameters
+            PredefinedBuildParameters.OrderedProperties p = new PredefinedBuildParameters.OrderedProperties();
+            p.load(new StringInputStream(Util.fixNull(paramExpr)));
+            String[] pairs = p.toPairs();
+            keys = new String[pairs.length / 2][];
+            values = new String[pairs.length / 2][];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = split(pairs[2 * i]);
+                values[i] = split(pairs[2 * i + 1]);
+            }
+        }
+
+        private static String[] split(String s) {
+            List<String> pieces = new ArrayList<String>();
+            Matcher m = VARIABLE.matcher(s);
+            int start = 0;
+            while (m.find()) {
+                String name = m.group(1);
+                if (name.equals("COUNT") || name.equals("{COUNT}")) {
+                    pieces.add(s.substring(start, m.start()));
+                    start = m.end();
+                }
+            }
+            pieces.add(s.substring(start));
+            return pieces.toArray(new String[pieces.size()]);
+        }
+
+        private static String fill(String[] pieces, String count) {
+            if (pieces.length == 1) {
+                return pieces[0];
+            }
+            StringBuilder buf = new StringBuilder(pieces[0]);
+            for (int i = 1; i < pieces.length; i++) {
+                buf.append(count).append(pieces[i]);
+            }
+            return buf.toString();
+        }
+    }
+
+    /**
+     * The parameters for one count: the template filled in with the count,
+     * without going through the text of {@link PredefinedBuildParameters}.
+     */
+    static final class CountParameters extends PredefinedBuildParameters {
+
+        /**
+         * The keys and values come from the template instead.
+         */
+        private static final String[] NONE = new String[0];
+        private final CountTemplate template;
+        private final long count;
+
+        CountParameters(CountTemplate template, long count) {
+            super(NONE, NONE);
+            this.template = template;
+            this.count = count;
+        }
+
+        @Override
+        public Action getAction(AbstractBuild<?, ?> build, TaskListener listener)
+                throws IOException, InterruptedException {
+            EnvVars env = getEnvironment(build, listener);
+            String c = Long.toString(count);
+            List<ParameterValue> values = new ArrayList<ParameterValue>(template.keys.length);
+            for (int i = 0; i < template.keys.length; i++) {
+                values.add(new StringParameterValue(CountTemplate.fill(template.keys[i], c),
+                        env.expand(CountTemplate.fill(template.values[i], c))));
+            }
+            return new ParametersAction(values);
+        }
+
+        @Override
+        public String getProperties() {
+            return Util.replaceMacro(template.paramExpr, ImmutableMap.of("COUNT", Long.toString(count)));
+        }
+
+        @Override
+        public Descriptor<AbstractBuildParameters> getDescriptor() {
+            return Hudson.getInstance().getDescriptorOrDie(PredefinedBuildParameters.class);
+        }
     }
 
     @Extension
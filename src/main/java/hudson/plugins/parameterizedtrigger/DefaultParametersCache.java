@@ -0,0 +1,160 @@
+package hudson.plugins.parameterizedtrigger;
+
+import com.google.common.collect.ImmutableList;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AbstractProject;
+import hudson.model.BooleanParameterDefinition;
+import hudson.model.ChoiceParameterDefinition;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.PasswordParameterDefinition;
+import hudson.model.Saveable;
+import hudson.model.StringParameterDefinition;
+import hudson.model.TextParameterDefinition;
+import hudson.model.listeners.SaveableListener;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Snapshots of the default parameters of downstream projects, so that a large
+ * fan-out does not compute the same defaults for every build. A snapshot is
+ * dropped whenever its project is saved.
+ *
+ * <p>
+ * Only projects whose parameters all have static defaults are cached. Types
+ * whose default can change without the project being saved, such as run
+ * parameters, are evaluated for every build. More types can be declared
+ * static with the {@code hudson.plugins.parameterizedtrigger.DefaultParametersCache.staticTypes}
+ * system property, a comma separated list of class names, and caching can be
+ * turned off altogether with
+ * {@code hudson.plugins.parameterizedtrigger.DefaultParametersCache.disabled=true}.
+ */
+public final class DefaultParametersCache {
+
+    private static final boolean DISABLED = Boolean.getBoolean(DefaultParametersCache.class.getName() + ".disabled");
+    private static final Set<String> STATIC_TYPES = new HashSet<String>();
+
+    static {
+        for (Class<?> c : new Class<?>[]{StringParameterDefinition.class, TextParameterDefinition.class,
+                    BooleanParameterDefinition.class, ChoiceParameterDefinition.class, PasswordParameterDefinition.class}) {
+            STATIC_TYPES.add(c.getName());
+        }
+        String more = System.getProperty(DefaultParametersCache.class.getName() + ".staticTypes");
+        if (more != null) {
+            for (String type : more.split(",")) {
+                if (type.trim().length() > 0) {
+                    STATIC_TYPES.add(type.trim());
+                }
+            }
+        }
+    }
+    /**
+     * Snapshots by project. Guarded by itself.
+     */
+    private static final Map<AbstractProject<?, ?>, Snapshot> SNAPSHOTS = new WeakHashMap<AbstractProject<?, ?>, Snapshot>();
+    /**
+     * Incremented whenever a snapshot is dropped, so that a snapshot computed
+     * concurrently with a save is not stored. Guarded by {@link #SNAPSHOTS}.
+     */
+    private static long generation;
+
+    private DefaultParametersCache() {
+    }
+
+    /**
+     * @return the default values of the parameters of the project, or
+     * {@code null} if it is not parameterized. The list must not be modified.
+     */
+    static List<ParameterValue> getDefaultParameters(AbstractProject<?, ?> project) {
+        if (DISABLED) {
+            return compute(project);
+        }
+        Snapshot snapshot;
+        long seen;
+        synchronized (SNAPSHOTS) {
+            snapshot = SNAPSHOTS.get(project);
+            seen = generation;
+        }
+        if (snapshot != null) {
+            return snapshot.cacheable ? snapshot.values : compute(project);
+        }
+
+        snapshot = new Snapshot(compute(project), isCacheable(project));
+        synchronized (SNAPSHOTS) {
+            if (seen == generation) {
+                SNAPSHOTS.put(project, snapshot);
+            }
+        }
+        return snapshot.values;
+    }
+
+    private static boolean isCacheable(AbstractProject<?, ?> project) {
+        ParametersDefinitionProperty property = project.getProperty(ParametersDefinitionProperty.class);
+        if (property != null) {
+            for (ParameterDefinition pd : property.getParameterDefinitions()) {
+                if (!STATIC_TYPES.contains(pd.getClass().getName())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static List<ParameterValue> compute(AbstractProject<?, ?> project) {
+        ParametersDefinitionProperty property = project.getProperty(ParametersDefinitionProperty.class);
+        if (property == null) {
+            return null;
+        }
+
+        List<ParameterValue> parameters = new ArrayList<ParameterValue>();
+        for (ParameterDefinition pd : property.getParameterDefinitions()) {
+            ParameterValue param = pd.getDefaultParameterValue();
+            if (param != null) {
+                parameters.add(param);
+            }
+        }
+        return ImmutableList.copyOf(parameters);
+    }
+
+    private static final class Snapshot {
+
+        /**
+         * {@code null} if the project is not parameterized.
+         */
+        private final List<ParameterValue> values;
+        /**
+         * Whether {@link #values} may be reused, or has to be computed again
+         * for every build.
+         */
+        private final boolean cacheable;
+
+        private Snapshot(List<ParameterValue> values, boolean cacheable) {
+            this.values = values;
+            this.cacheable = cacheable;
+        }
+    }
+
+    /**
+     * Drops the snapshot of a project when its configuration is saved.
+     */
+    @Extension
+    public static class ListenerImpl extends SaveableListener {
+
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof AbstractProject) {
+                synchronized (SNAPSHOTS) {
+                    SNAPSHOTS.remove(o);
+                    generation++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package hudson.plugins.parameterizedtrigger;
+
+import hudson.model.InvisibleAction;
+
+/**
+ * Marks a build scheduled by a blocking {@link TriggerBuilder} so that its
+ * completion can be routed back to the waiting step by
+ * {@link DownstreamWaitSet.ListenerImpl}.
+ */
+public class DownstreamWaitAction extends InvisibleAction {
+
+    private final String id;
+
+    DownstreamWaitAction(String id) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return id;
+    }
+}
@@ -0,0 +1,543 @@
+package hudson.plugins.parameterizedtrigger;
+
+import hudson.Extension;
+import hudson.console.HyperlinkNote;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Hudson;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downstream builds a blocking {@link TriggerBuilder} step waits for.
+ *
+ * <p>
+ * Builds scheduled while a wait set is open for the upstream build carry a
+ * {@link DownstreamWaitAction}, and {@link ListenerImpl} hands them back here
+ * when they complete. Nobody sits in {@link Future#get()} for those builds;
+ * only the thread of the upstream build waits, and maps each result through
+ * {@link BlockingBehaviour} as soon as it arrives.
+ *
+ * @see BlockableBuildTriggerConfig#schedule
+ */
+public class DownstreamWaitSet {
+
+    /**
+     * How often to recheck futures that will not produce a completion event,
+     * such as queue items that got cancelled.
+     */
+    private static final long POLL_INTERVAL = 5000;
+    /**
+     * Same for builds scheduled while no wait set was open, which never
+     * produce a completion event.
+     */
+    private static final long UNMARKED_POLL_INTERVAL = 1000;
+    private static final ConcurrentMap<AbstractBuild<?, ?>, DownstreamWaitSet> OPEN = new ConcurrentHashMap<AbstractBuild<?, ?>, DownstreamWaitSet>();
+    private static final ConcurrentMap<String, Entry> PENDING = new ConcurrentHashMap<String, Entry>();
+    private final AbstractBuild<?, ?> build;
+    /**
+     * Entries in the order they have to be processed.
+     */
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final Map<String, Entry> marked = new HashMap<String, Entry>();
+    private final Map<Future, Entry> scheduled = new IdentityHashMap<Future, Entry>();
+    /**
+     * Entries whose build has been reported complete by {@link ListenerImpl}.
+     */
+    private final BlockingQueue<Entry> completions = new LinkedBlockingQueue<Entry>();
+    /**
+     * Scheduling that waits for downstream builds of this set to complete, or
+     * for the rate limits to have room.
+     */
+    private final Map<Deferred, BuildTriggerConfig> deferred = new LinkedHashMap<Deferred, BuildTriggerConfig>();
+    /**
+     * Registered builds not handled yet, only used by the waiting thread.
+     */
+    private final Set<Entry> remaining = new LinkedHashSet<Entry>();
+    /**
+     * Configs that failed the build step, only used by the waiting thread.
+     */
+    private final Set<BuildTriggerConfig> failed = Collections.newSetFromMap(new IdentityHashMap<BuildTriggerConfig, Boolean>());
+    private volatile boolean stopped;
+
+    DownstreamWaitSet(AbstractBuild<?, ?> build) {
+        this.build = build;
+    }
+
+    /**
+     * Opens the wait set of a build. Builds scheduled by blocking configs for
+     * this build are tracked by it until {@link #close()} is called.
+     */
+    public static DownstreamWaitSet open(AbstractBuild<?, ?> build) {
+        DownstreamWaitSet waitSet = new DownstreamWaitSet(build);
+        OPEN.put(build, waitSet);
+        return waitSet;
+    }
+
+    /**
+     * @return the open wait set of the given build, or {@code null}.
+     */
+    public static DownstreamWaitSet of(AbstractBuild<?, ?> build) {
+        return OPEN.get(build);
+    }
+
+    /**
+     * Creates the marker to add to the actions of a build about to be
+     * scheduled. Call {@link #bind} with the resulting future afterwards.
+     */
+    synchronized DownstreamWaitAction newMarker() {
+        Entry e = new Entry(this, UUID.randomUUID().toString());
+        marked.put(e.id, e);
+        PENDING.put(e.id, e);
+        return new DownstreamWaitAction(e.id);
+    }
+
+    /**
+     * Associates the future returned by the queue with a marker, or drops the
+     * marker if nothing was scheduled.
+     */
+    synchronized void bind(DownstreamWaitAction marker, Future future) {
+        Entry e = marked.remove(marker.getId());
+        if (e == null) {
+            return;
+        }
+        if (future == null) {
+            PENDING.remove(e.id);
+        } else {
+            e.future = future;
+            scheduled.put(future, e);
+        }
+    }
+
+    /**
+     * Adds a downstream build to the ones to wait for, in processing order.
+     */
+    public synchronized void waitFor(BlockableBuildTriggerConfig config,
+            AbstractProject project, Future<AbstractBuild> future) {
+        if (future == null) {
+            return;
+        }
+        Entry e = scheduled.remove(future);
+        if (e == null) {
+            // not scheduled while this set was open, so just block on it
+            e = new Entry(this, null);
+            e.future = future;
+        }
+        e.config = config;
+        e.project = project;
+        entries.add(e);
+    }
+
+    /**
+     * Hands the rest of the scheduling of a config to the thread waiting for
+     * this set, which resumes it each time a downstream build completes and
+     * when it asks to be, rather than having the triggering thread wait for
+     * room. The builds it
+     * schedules are only waited for if the config blocks.
+     */
+    synchronized void defer(BuildTriggerConfig config, Deferred d) {
+        deferred.put(d, config);
+    }
+
+    /**
+     * Waits for all registered downstream builds and applies the
+     * {@link BlockingBehaviour} of their configs, in the order the builds
+     * complete. Call it once no other thread registers builds anymore.
+     *
+     * @return {@code false} if the build step has to fail.
+     */
+    public boolean await(BuildListener listener) throws InterruptedException {
+        while (poll(listener, Long.MAX_VALUE, true)) {
+        }
+        return failed.isEmpty();
+    }
+
+    /**
+     * Handles the registered downstream builds that have completed, waiting
+     * up to the given time for one to complete, so that builds are handled
+     * while other configs are still scheduling theirs.
+     *
+     * @return {@code false} if there is nothing to wait for at the moment.
+     */
+    boolean poll(BuildListener listener, long timeout) throws InterruptedException {
+        return poll(listener, timeout, false);
+    }
+
+    /**
+     * @param settled whether all builds have been registered, so that
+     * deferred configs that cannot make progress can be given up on.
+     */
+    private boolean poll(BuildListener listener, long timeout, boolean settled) throws InterruptedException {
+        synchronized (this) {
+            // builds scheduled by deferred configs or other threads
+            remaining.addAll(entries);
+            entries.clear();
+        }
+        if (stopped) {
+            // registered after a fail-fast config failed the build step
+            cancel(remaining, listener);
+            remaining.clear();
+            abandon(listener, "the build step failed");
+            return false;
+        }
+        if (remaining.isEmpty()) {
+            if (!hasDeferred()) {
+                return false;
+            }
+            // nothing left that could hold the deferred builds back,
+            // except for the rate limits
+            if (!resume(null, Long.MAX_VALUE, listener)) {
+                long resumeTime = getResumeTime();
+                if (resumeTime == Long.MAX_VALUE && settled) {
+                    abandon(listener, "no triggered build left to wait for");
+                } else {
+                    // the builds holding them back may not be registered yet
+                    Thread.sleep(Math.max(1, Math.min(timeout, resumeTime - System.currentTimeMillis())));
+                }
+            }
+            return true;
+        }
+
+        long wait = hasUnmarked(remaining) ? UNMARKED_POLL_INTERVAL : POLL_INTERVAL;
+        wait = Math.max(1, Math.min(Math.min(wait, timeout), getResumeTime() - System.currentTimeMillis()));
+        Entry next = completions.poll(wait, TimeUnit.MILLISECONDS);
+        List<Entry> ready = new ArrayList<Entry>();
+        if (next != null) {
+            ready.add(next);
+            completions.drainTo(ready);
+        } else {
+            // nothing reported, look for cancelled items and for builds
+            // we have no completion event for
+            for (Entry e : remaining) {
+                if (e.future.isDone()) {
+                    ready.add(e);
+                }
+            }
+        }
+
+        for (Entry e : ready) {
+            if (!remaining.remove(e)) {
+                continue;
+            }
+            if (!process(e, failed.contains(e.config), listener)) {
+                failed.add(e.config);
+                if (e.config.getBlock().isFailFast()) {
+                    stopped = true;
+                    cancel(remaining, listener);
+                    // no need to wait for results that cannot change the outcome
+                    remaining.clear();
+                    abandon(listener, "the build step failed");
+                    return false;
+                }
+            }
+            resume(e.future, Long.MAX_VALUE, listener);
+        }
+        // the ones waiting for the rate limits rather than for a build
+        resume(null, System.currentTimeMillis(), listener);
+        return true;
+    }
+
+    /**
+     * @return whether a fail-fast config has failed the build step, after
+     * which no more configs should be triggered.
+     */
+    boolean isStopped() {
+        return stopped;
+    }
+
+    private synchronized boolean hasDeferred() {
+        return !deferred.isEmpty();
+    }
+
+    /**
+     * @return the earliest time a deferred config asked to be resumed at, or
+     * {@link Long#MAX_VALUE}.
+     */
+    private synchronized long getResumeTime() {
+        long time = Long.MAX_VALUE;
+        for (Deferred d : deferred.keySet()) {
+            time = Math.min(time, d.getResumeTime());
+        }
+        return time;
+    }
+
+    /**
+     * Lets the deferred configs schedule the builds there is room for now,
+     * and adds those builds to the ones to wait for.
+     *
+     * @param completed the future of the downstream build that just
+     * completed, or {@code null}.
+     * @param dueBy without a completed build, only resume the configs that
+     * asked to be resumed by then.
+     * @return {@code false} if none of the deferred configs could make
+     * progress.
+     */
+    private boolean resume(Future completed, long dueBy, BuildListener listener)
+            throws InterruptedException {
+        Map<Deferred, BuildTriggerConfig> snapshot;
+        synchronized (this) {
+            snapshot = new LinkedHashMap<Deferred, BuildTriggerConfig>(deferred);
+        }
+        boolean progress = false;
+        for (Map.Entry<Deferred, BuildTriggerConfig> d : snapshot.entrySet()) {
+            if (completed == null && d.getKey().getResumeTime() > dueBy) {
+                continue;
+            }
+            BuildTriggerConfig config = d.getValue();
+            BlockableBuildTriggerConfig blocking = config instanceof BlockableBuildTriggerConfig
+                    && ((BlockableBuildTriggerConfig) config).getBlock() != null
+                    ? (BlockableBuildTriggerConfig) config : null;
+            ListMultimap<AbstractProject, Future<AbstractBuild>> scheduled = LinkedListMultimap.create();
+            boolean done;
+            try {
+                done = d.getKey().resume(completed, scheduled);
+            } catch (IOException x) {
+                listener.error("Failed to trigger the remaining builds of " + config.getProjects());
+                x.printStackTrace(listener.getLogger());
+                failed.add(config);
+                d.getKey().abandon();
+                done = true;
+            }
+            for (Map.Entry<AbstractProject, Future<AbstractBuild>> f : scheduled.entries()) {
+                if (blocking != null && f.getValue() != null) {
+                    AbstractProject p = f.getKey();
+                    listener.getLogger().println("Waiting for the completion of "
+                            + HyperlinkNote.encodeTo('/' + p.getUrl(), p.getFullDisplayName()));
+                    waitFor(blocking, p, f.getValue());
+                }
+            }
+            if (done) {
+                synchronized (this) {
+                    deferred.remove(d.getKey());
+                }
+            }
+            progress |= done || !scheduled.isEmpty();
+        }
+        return progress;
+    }
+
+    /**
+     * Gives up on the builds the deferred configs have not scheduled yet.
+     */
+    private void abandon(BuildListener listener, String reason) {
+        List<Deferred> abandoned;
+        synchronized (this) {
+            abandoned = new ArrayList<Deferred>(deferred.keySet());
+            deferred.clear();
+        }
+        for (Deferred d : abandoned) {
+            d.abandon();
+        }
+        if (listener != null && !abandoned.isEmpty()) {
+            listener.getLogger().println("Not triggering the remaining builds of "
+                    + abandoned.size() + " config(s), " + reason + ".");
+        }
+    }
+
+    /**
+     * Handles the result of a completed downstream build.
+     *
+     * @param stepFailed whether another build already failed the build step
+     * for the same config, in which case the build result is left alone.
+     * @return {@code false} if it fails the build step.
+     */
+    private boolean process(Entry e, boolean stepFailed, BuildListener listener) throws InterruptedException {
+        try {
+            AbstractBuild b = e.completed != null ? e.completed : (AbstractBuild) e.future.get();
+            listener.getLogger().println(
+                    HyperlinkNote.encodeTo('/' + b.getUrl(), b.getFullDisplayName())
+                    + " completed. Result was " + b.getResult());
+            build.getActions().add(
+                    new BuildInfoExporterAction(b.getProject().getFullName(), b.getNumber()));
+
+            BlockingBehaviour block = e.config.getBlock();
+            if (!stepFailed && block.mapBuildStepResult(b.getResult())) {
+                build.setResult(block.mapBuildResult(b.getResult()));
+                return true;
+            }
+            return false;
+        } catch (CancellationException x) {
+            listener.getLogger().println(e.project.getFullDisplayName() + " aborted.");
+            return false;
+        } catch (ExecutionException x) {
+            listener.error("Failed to wait for " + e.project.getFullDisplayName());
+            x.printStackTrace(listener.getLogger());
+            return false;
+        }
+    }
+
+    private static boolean hasUnmarked(Collection<Entry> entries) {
+        for (Entry e : entries) {
+            if (e.id == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the given builds from the queue, or aborts them if they are
+     * already running.
+     */
+    private void cancel(Collection<Entry> remaining, BuildListener listener) {
+        int count = 0;
+        for (Entry e : remaining) {
+            if (e.completed == null && cancel(e.project, e.future)) {
+                count++;
+            }
+        }
+        if (count > 0) {
+            listener.getLogger().println("Build step failed, cancelled "
+                    + count + " other triggered build(s).");
+        }
+    }
+
+    /**
+     * Removes a triggered build from the queue, or aborts it if it is already
+     * running.
+     *
+     * @return {@code false} if it was already done.
+     */
+    static boolean cancel(AbstractProject project, Future future) {
+        if (future.isDone()) {
+            return false;
+        }
+        Queue queue = Hudson.getInstance().getQueue();
+        synchronized (queue) {
+            for (Queue.Item item : queue.getItems(project)) {
+                if (item.getFuture() == future) {
+                    if (queue.cancel(item)) {
+                        return true;
+                    }
+                    break;
+                }
+            }
+        }
+        return future.cancel(true);
+    }
+
+    /**
+     * Stops tracking builds for the upstream build.
+     */
+    public void close() {
+        // deferred configs left when the wait was interrupted
+        abandon(null, null);
+        synchronized (this) {
+            OPEN.remove(build, this);
+            for (Entry e : PENDING.values()) {
+                if (e.owner == this) {
+                    PENDING.remove(e.id);
+                }
+            }
+            marked.clear();
+            scheduled.clear();
+        }
+    }
+
+    private static void onCompleted(Run r) {
+        DownstreamWaitAction marker = r.getAction(DownstreamWaitAction.class);
+        if (marker == null || !(r instanceof AbstractBuild)) {
+            return;
+        }
+        r.getActions().remove(marker);
+        Entry e = PENDING.remove(marker.getId());
+        if (e == null) {
+            return;
+        }
+        e.completed = (AbstractBuild) r;
+        e.owner.completions.add(e);
+    }
+
+    /**
+     * Scheduling of a config that waits for room among its builds in flight,
+     * or in its rate limits.
+     */
+    interface Deferred {
+
+        /**
+         * Schedules the builds there is room for now. Called on the thread
+         * waiting for the wait set.
+         *
+         * @param completed the future of a build of the set that has
+         * completed, or {@code null}.
+         * @param scheduled receives the futures of the builds scheduled by
+         * this call.
+         * @return {@code true} once there is nothing left to schedule.
+         */
+        boolean resume(Future completed, ListMultimap<AbstractProject, Future<AbstractBuild>> scheduled)
+                throws InterruptedException, IOException;
+
+        /**
+         * @return when to be resumed even if no build completes, in
+         * milliseconds since the epoch, or {@link Long#MAX_VALUE}.
+         */
+        long getResumeTime();
+
+        /**
+         * Gives up on the builds not scheduled yet.
+         */
+        void abandon();
+    }
+
+    private static final class Entry {
+
+        private final DownstreamWaitSet owner;
+        /**
+         * Id of the {@link DownstreamWaitAction}, or {@code null} for builds
+         * that are waited for by blocking on their future.
+         */
+        private final String id;
+        private Future future;
+        private BlockableBuildTriggerConfig config;
+        private AbstractProject project;
+        private volatile AbstractBuild completed;
+
+        private Entry(DownstreamWaitSet owner, String id) {
+            this.owner = owner;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Reports completed downstream builds to the waiting steps.
+     */
+    @Extension
+    public static class ListenerImpl extends RunListener<Run> {
+
+        public ListenerImpl() {
+            super(Run.class);
+        }
+
+        @Override
+        public void onCompleted(Run r, TaskListener listener) {
+            DownstreamWaitSet.onCompleted(r);
+        }
+    }
+}
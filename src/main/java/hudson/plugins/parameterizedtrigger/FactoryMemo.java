@@ -0,0 +1,125 @@
+package hudson.plugins.parameterizedtrigger;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.IOException2;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Remembers the parameters factories produced for a build, so that factories
+ * configured the same way in several triggers of a build step only do their
+ * work once. The workspace files they read are trusted not to change during
+ * the step, and are read again by the next one.
+ *
+ * @see AbstractBuildParameterFactory#getMemoKey
+ */
+public final class FactoryMemo {
+
+    /**
+     * Results per build, by factory class and memo key. Guarded by itself.
+     */
+    private static final Map<Run, Map<String, FutureTask<List<AbstractBuildParameters>>>> MEMO = new WeakHashMap<Run, Map<String, FutureTask<List<AbstractBuildParameters>>>>();
+
+    private FactoryMemo() {
+    }
+
+    /**
+     * Gets the parameters of a factory for a build, reusing the ones of an
+     * equivalent factory if they have already been computed for the build.
+     */
+    static List<AbstractBuildParameters> getParameters(final AbstractBuildParameterFactory factory,
+            final AbstractBuild<?, ?> build, final TaskListener listener)
+            throws IOException, InterruptedException, AbstractBuildParameters.DontTriggerException {
+        String key = factory.getMemoKey(build, listener);
+        if (key == null) {
+            return factory.getParameters(build, listener);
+        }
+        key = factory.getClass().getName() + '\0' + key;
+
+        FutureTask<List<AbstractBuildParameters>> task;
+        boolean owner = false;
+        synchronized (MEMO) {
+            Map<String, FutureTask<List<AbstractBuildParameters>>> results = MEMO.get(build);
+            if (results == null) {
+                MEMO.put(build, results = new HashMap<String, FutureTask<List<AbstractBuildParameters>>>());
+            }
+            task = results.get(key);
+            if (task == null) {
+                task = new FutureTask<List<AbstractBuildParameters>>(new Callable<List<AbstractBuildParameters>>() {
+                    public List<AbstractBuildParameters> call() throws Exception {
+                        return factory.getParameters(build, listener);
+                    }
+                });
+                results.put(key, task);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            task.run();
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            if (owner) {
+                // don't remember failures
+                synchronized (MEMO) {
+                    Map<String, FutureTask<List<AbstractBuildParameters>>> results = MEMO.get(build);
+                    if (results != null) {
+                        results.remove(key);
+                    }
+                }
+            }
+            Throwable t = e.getCause();
+            if (t instanceof AbstractBuildParameters.DontTriggerException) {
+                throw (AbstractBuildParameters.DontTriggerException) t;
+            } else if (t instanceof IOException) {
+                throw (IOException) t;
+            } else if (t instanceof InterruptedException) {
+                throw (InterruptedException) t;
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new IOException2(t);
+        }
+    }
+
+    /**
+     * Forgets the parameters of a build, when a build step starts that may
+     * see other workspace files than the previous one.
+     */
+    static void forget(Run r) {
+        synchronized (MEMO) {
+            MEMO.remove(r);
+        }
+    }
+
+    /**
+     * Forgets the parameters of a build once it is done.
+     */
+    @Extension
+    public static class ListenerImpl extends RunListener<Run> {
+
+        public ListenerImpl() {
+            super(Run.class);
+        }
+
+        @Override
+        public void onCompleted(Run r, TaskListener listener) {
+            forget(r);
+        }
+    }
+}
@@ -19,13 +19,19 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.FileReader;
+import java.io.InputStream;
+import java.io.Serializable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.types.FileSet;
@@ -38,28 +44,45 @@ import org.kohsuke.stapler.DataBoundConstructor;
 public class FileBuildParameterFactory extends AbstractBuildParameterFactory {
 
     private final String filePattern;
+    /**
+     * Whether to trigger builds while the files are still being read.
+     */
+    private final boolean streaming;
 
     @DataBoundConstructor
-    public FileBuildParameterFactory(String filePattern) {
+    public FileBuildParameterFactory(String filePattern, boolean streaming) {
         this.filePattern = filePattern;
+        this.streaming = streaming;
+    }
+
+    public FileBuildParameterFactory(String filePattern) {
+        this(filePattern, false);
     }
 
     public String getFilePattern() {
         return filePattern;
     }
 
+    public boolean isStreaming() {
+        return streaming;
+    }
+
     @Override
     public List<AbstractBuildParameters> getParameters(AbstractBuild<?, ?> build, TaskListener listener) throws IOException, InterruptedException, AbstractBuildParameters.DontTriggerException {
 
         List<AbstractBuildParameters> result = Lists.newArrayList();
+        if (streaming) {
+            // only the parameters of the last factory can be streamed
+            listener.getLogger().println("Reading " + getFilePattern()
+                    + " before triggering builds, as it is not the last parameter factory of the trigger");
+        }
 
         try {
             FilePath workspace = getWorkspace(build);
-            FilePath[] files = workspace.list(getFilePattern());
-            for (FilePath f : files) {
-                String parametersStr = f.readToString();
-                Logger.getLogger(FileBuildParameterFactory.class.getName()).log(Level.INFO, null, "Triggering build with " + f.getBaseName());
-                result.add(new PredefinedBuildParameters(parametersStr));
+            // a single call to the node that has the workspace, however many files match
+            for (ParsedFile f : workspace.act(new ReadParameterFiles(getFilePattern()))) {
+                Logger.getLogger(FileBuildParameterFactory.class.getName()).log(Level.INFO, null, "Triggering build with " + f.baseName);
+                result.add(PredefinedBuildParameters.Parsed.fromPairs(f.pairs));
             }
 
         } catch (Exception ex) {
@@ -69,6 +92,111 @@ public class FileBuildParameterFactory extends AbstractBuildParameterFactory {
         return result;
     }
 
+    @Override
+    public String getMemoKey(AbstractBuild<?, ?> build, TaskListener listener) throws IOException, InterruptedException {
+        return getWorkspace(build) == null ? null : getFilePattern();
+    }
+
+    @Override
+    public Iterator<AbstractBuildParameters> streamParameters(AbstractBuild<?, ?> build, TaskListener listener) throws IOException, InterruptedException, AbstractBuildParameters.DontTriggerException {
+        if (!streaming) {
+            return null;
+        }
+        try {
+            return ParameterSetStream.open(getWorkspace(build), new StreamParameterFiles(getFilePattern()), listener);
+        } catch (Exception ex) {
+            Logger.getLogger(FileBuildParameterFactory.class.getName()).log(Level.SEVERE, null, ex);
+            return Collections.<AbstractBuildParameters>emptyList().iterator();
+        }
+    }
+
+    /**
+     * Finds the files matching the pattern and streams their parsed
+     * properties, on the node that has the workspace.
+     */
+    private static final class StreamParameterFiles extends ParameterSetStream.Producer {
+
+        private static final long serialVersionUID = 1L;
+        private final String filePattern;
+
+        StreamParameterFiles(String filePattern) {
+            this.filePattern = filePattern;
+        }
+
+        @Override
+        protected void produce(File dir, ParameterSetStream.Sink sink) throws IOException, InterruptedException {
+            for (String path : findFiles(dir, filePattern)) {
+                ParsedFile f = parse(new File(dir, path));
+                sink.add(f.baseName, f.pairs);
+            }
+        }
+    }
+
+    /**
+     * Finds the files matching the pattern and parses their properties, on
+     * the node that has the workspace.
+     */
+    private static final class ReadParameterFiles implements FileCallable<List<ParsedFile>> {
+
+        private static final long serialVersionUID = 1L;
+        private final String filePattern;
+
+        ReadParameterFiles(String filePattern) {
+            this.filePattern = filePattern;
+        }
+
+        public List<ParsedFile> invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            List<ParsedFile> files = new ArrayList<ParsedFile>();
+            for (String path : findFiles(dir, filePattern)) {
+                files.add(parse(new File(dir, path)));
+            }
+            return files;
+        }
+    }
+
+    /**
+     * @return the paths of the files matching the pattern, sorted so that
+     * builds are triggered in the same order however they are read.
+     */
+    private static String[] findFiles(File dir, String filePattern) {
+        FileSet fs = Util.createFileSet(dir, filePattern);
+        String[] paths = fs.getDirectoryScanner().getIncludedFiles();
+        Arrays.sort(paths);
+        return paths;
+    }
+
+    private static ParsedFile parse(File f) throws IOException {
+        PredefinedBuildParameters.OrderedProperties p = new PredefinedBuildParameters.OrderedProperties();
+        InputStream in = new FileInputStream(f);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        return new ParsedFile(dot < 0 ? name : name.substring(0, dot),
+                p.toPairs());
+    }
+
+    /**
+     * The properties of one file, as sent back from the node.
+     */
+    private static final class ParsedFile implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private final String baseName;
+        /**
+         * Keys and values, alternating.
+         */
+        private final String[] pairs;
+
+        ParsedFile(String baseName, String[] pairs) {
+            this.baseName = baseName;
+            this.pairs = pairs;
+        }
+    }
+
     private FilePath getWorkspace(AbstractBuild build) {
         FilePath workspace = build.getWorkspace();
         if (workspace == null) {
@@ -1,23 +1,31 @@
 package hudson.plugins.parameterizedtrigger;
 
+import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.Extension;
-import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.Action;
 import hudson.model.Descriptor;
+import hudson.model.Hudson;
 import hudson.model.ParameterValue;
 import hudson.model.ParametersAction;
 import hudson.model.StringParameterValue;
 import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
+import java.util.StringTokenizer;
 
-import org.apache.tools.ant.filters.StringInputStream;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 public class FileBuildParameters extends AbstractBuildParameters {
@@ -35,8 +43,24 @@ public class FileBuildParameters extends AbstractBuildParameters {
         EnvVars env = getEnvironment(build, listener);
 
         String resolvedPropertiesFile = env.expand(propertiesFile);
-        FilePath f = build.getWorkspace().child(resolvedPropertiesFile);
-        if (!f.exists()) {
+        // split like Util.createFileSet, but keep the patterns apart so that
+        // their files are read in the order they are listed
+        List<String> names = new ArrayList<String>();
+        StringTokenizer tokens = new StringTokenizer(resolvedPropertiesFile, ",");
+        while (tokens.hasMoreTokens()) {
+            String name = tokens.nextToken().trim();
+            if (name.length() > 0) {
+                names.add(name);
+            }
+        }
+        long maxSize = Hudson.getInstance().getDescriptorByType(TriggerBuilder.DescriptorImpl.class).getMaxPropertiesFileSize() * 1024L;
+        // all files are read and merged where they are, in a single call, so
+        // that only the parameters travel
+        Contents contents = build.getWorkspace().act(new ReadProperties(names, maxSize));
+        if (contents.tooLarge != null) {
+            throw new AbortException(contents.tooLarge);
+        }
+        if (contents.fileCount == 0) {
             listener
                     .getLogger()
                     .println(
@@ -45,16 +69,14 @@ public class FileBuildParameters extends AbstractBuildParameters {
                     + " did not exist.");
             return null;
         }
+        for (String missing : contents.missing) {
+            listener.getLogger().println("[parameterizedtrigger] Properties file " + missing + " did not exist.");
+        }
+        String[] pairs = contents.pairs;
 
-        String s = f.readToString();
-        s = env.expand(s);
-        Properties p = new Properties();
-        p.load(new StringInputStream(s));
-
-        List<ParameterValue> values = new ArrayList<ParameterValue>();
-        for (Map.Entry<Object, Object> entry : p.entrySet()) {
-            values.add(new StringParameterValue(entry.getKey().toString(),
-                    entry.getValue().toString()));
+        List<ParameterValue> values = new ArrayList<ParameterValue>(pairs.length / 2);
+        for (int i = 0; i < pairs.length; i += 2) {
+            values.add(new StringParameterValue(env.expand(pairs[i]), env.expand(pairs[i + 1])));
         }
 
         return new ParametersAction(values);
@@ -65,6 +87,120 @@ public class FileBuildParameters extends AbstractBuildParameters {
         return propertiesFile;
     }
 
+    /**
+     * Properties read from the files of a {@link FileBuildParameters}.
+     */
+    private static final class Contents implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        /**
+         * Keys and values, alternating.
+         */
+        private final String[] pairs;
+        private final int fileCount;
+        /**
+         * Files that were named without a wildcard and do not exist.
+         */
+        private final List<String> missing;
+        /**
+         * Why a file was not read because of its size, or {@code null}. This
+         * is reported here rather than thrown, so that the build does not fail
+         * with the stack trace of the remote call.
+         */
+        private final String tooLarge;
+
+        Contents(String[] pairs, int fileCount, List<String> missing, String tooLarge) {
+            this.pairs = pairs;
+            this.fileCount = fileCount;
+            this.missing = missing;
+            this.tooLarge = tooLarge;
+        }
+    }
+
+    /**
+     * Reads and merges properties files relative to a workspace. Files are
+     * read in the order they are listed, those matching one pattern in the
+     * order of their paths, and a later file overrides the keys of an earlier
+     * one.
+     */
+    private static final class ReadProperties implements FileCallable<Contents> {
+
+        private static final long serialVersionUID = 1L;
+        /**
+         * File names or Ant patterns.
+         */
+        private final List<String> names;
+        /**
+         * Bytes a file may have, 0 for no limit.
+         */
+        private final long maxSize;
+
+        ReadProperties(List<String> names, long maxSize) {
+            this.names = names;
+            this.maxSize = maxSize;
+        }
+
+        public Contents invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            PredefinedBuildParameters.OrderedProperties p = new PredefinedBuildParameters.OrderedProperties();
+            int fileCount = 0;
+            List<String> missing = new ArrayList<String>();
+            for (String name : names) {
+                File f = new File(name);
+                boolean absolute = f.isAbsolute();
+                if (!absolute) {
+                    f = new File(dir, name);
+                }
+                boolean pattern = name.indexOf('*') >= 0 || name.indexOf('?') >= 0;
+                if (absolute || (!pattern && !f.isDirectory())) {
+                    // a single file, which a pattern would not find outside of
+                    // the workspace, or when excluded by default
+                    if (f.isFile()) {
+                        if (!load(f, p)) {
+                            return tooLarge(f);
+                        }
+                        fileCount++;
+                    } else {
+                        missing.add(name);
+                    }
+                    continue;
+                }
+                // a directory stands for all the files below it
+                String[] paths = Util.createFileSet(dir, name).getDirectoryScanner().getIncludedFiles();
+                Arrays.sort(paths);
+                for (String path : paths) {
+                    File file = new File(dir, path);
+                    if (!load(file, p)) {
+                        return tooLarge(file);
+                    }
+                    fileCount++;
+                }
+            }
+            return new Contents(p.toPairs(), fileCount, missing, null);
+        }
+
+        private Contents tooLarge(File f) {
+            return new Contents(null, 0, null, "Properties file " + f + " has " + f.length()
+                    + " bytes, more than the limit of " + maxSize);
+        }
+
+        /**
+         * @return {@code false} if the file is larger than allowed, in which
+         * case it is not read.
+         */
+        private boolean load(File f, Properties p) throws IOException {
+            if (maxSize > 0 && f.length() > maxSize) {
+                return false;
+            }
+            InputStream in = new FileInputStream(f);
+            try {
+                p.load(in);
+            } finally {
+                in.close();
+            }
+            return true;
+        }
+    }
+
     @Extension
     public static class DescriptorImpl extends Descriptor<AbstractBuildParameters> {
 
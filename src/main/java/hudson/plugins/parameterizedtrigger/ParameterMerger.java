@@ -0,0 +1,69 @@
+package hudson.plugins.parameterizedtrigger;
+
+import hudson.model.Action;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Collects the parameter values of a downstream build from several sources in
+ * a single pass. A value replaces an earlier one of the same name, which keeps
+ * its position. Only {@link #toAction()} creates a {@link ParametersAction}.
+ */
+final class ParameterMerger {
+
+    private final LinkedHashMap<String, ParameterValue> values = new LinkedHashMap<String, ParameterValue>();
+
+    ParameterMerger add(Collection<? extends ParameterValue> overlay) {
+        for (ParameterValue value : overlay) {
+            values.put(value.getName(), value);
+        }
+        return this;
+    }
+
+    ParameterMerger add(ParametersAction overlay) {
+        return add(overlay.getParameters());
+    }
+
+    List<ParameterValue> getValues() {
+        return new ArrayList<ParameterValue>(values.values());
+    }
+
+    ParametersAction toAction() {
+        return new ParametersAction(new ArrayList<ParameterValue>(values.values()));
+    }
+
+    /**
+     * Stands for the merged parameters of a trigger in its base actions,
+     * until the parameters of the downstream project are merged in by
+     * {@link BuildTriggerConfig#getBuildActions}.
+     */
+    static final class Pending implements Action {
+
+        private final List<ParameterValue> values;
+
+        Pending(List<ParameterValue> values) {
+            this.values = values;
+        }
+
+        List<ParameterValue> getValues() {
+            return values;
+        }
+
+        public String getIconFileName() {
+            return null;
+        }
+
+        public String getDisplayName() {
+            return null;
+        }
+
+        public String getUrlName() {
+            return null;
+        }
+    }
+}
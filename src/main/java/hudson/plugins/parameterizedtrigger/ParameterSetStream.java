@@ -0,0 +1,265 @@
+package hudson.plugins.parameterizedtrigger;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.TaskListener;
+import hudson.remoting.FastPipedInputStream;
+import hudson.remoting.FastPipedOutputStream;
+import hudson.remoting.LocalChannel;
+import hudson.remoting.Pipe;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parameter sets parsed on the node that has the workspace, and sent back
+ * through a pipe as they are parsed. The pipe only lets a bounded amount of
+ * data through until it is read, so the node waits while the builds triggered
+ * so far are being scheduled.
+ *
+ * @see AbstractBuildParameterFactory#streamParameters
+ */
+final class ParameterSetStream implements Iterator<AbstractBuildParameters>, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(ParameterSetStream.class.getName());
+    private final DataInputStream in;
+    private final Future<Void> done;
+    private final TaskListener listener;
+    private AbstractBuildParameters next;
+    private boolean ended;
+
+    private ParameterSetStream(DataInputStream in, Future<Void> done, TaskListener listener) {
+        this.in = in;
+        this.done = done;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts the producer on the node of the workspace.
+     *
+     * @param listener where to report a failure of the producer, which ends
+     * the stream.
+     */
+    static Iterator<AbstractBuildParameters> open(FilePath workspace, Producer producer, TaskListener listener) throws IOException, InterruptedException {
+        InputStream in;
+        if (workspace.getChannel() instanceof LocalChannel) {
+            // the producer is not serialized, so a pipe would never get
+            // its output end
+            FastPipedInputStream local = new FastPipedInputStream();
+            producer.localOut = new FastPipedOutputStream(local);
+            in = local;
+        } else {
+            producer.pipe = Pipe.createRemoteToLocal();
+            in = producer.pipe.getIn();
+        }
+        Future<Void> done = workspace.actAsync(producer);
+        return new ParameterSetStream(new DataInputStream(new BufferedInputStream(in)), done, listener);
+    }
+
+    public boolean hasNext() {
+        if (next == null && !ended) {
+            next = read();
+        }
+        return next != null;
+    }
+
+    public AbstractBuildParameters next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        AbstractBuildParameters n = next;
+        next = null;
+        return n;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stops the producer, for consumers that do not read all parameter sets.
+     * Otherwise it would wait forever for the pipe to be read.
+     */
+    public void close() {
+        if (!ended) {
+            end();
+            done.cancel(true);
+        }
+    }
+
+    private AbstractBuildParameters read() {
+        try {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                // the node side failed, done tells why
+                length = -1;
+            }
+            if (length >= 0) {
+                String label = readString(in);
+                String[] pairs = new String[length];
+                for (int i = 0; i < length; i++) {
+                    pairs[i] = readString(in);
+                }
+                if (label.length() > 0) {
+                    LOGGER.log(Level.INFO, "Triggering build with {0}", label);
+                }
+                return PredefinedBuildParameters.Parsed.fromPairs(pairs);
+            }
+            end();
+            done.get();
+        } catch (Exception ex) {
+            end();
+            LOGGER.log(Level.SEVERE, null, ex);
+            ex.printStackTrace(listener.error("Failed to read the build parameters"));
+        }
+        return null;
+    }
+
+    private void end() {
+        ended = true;
+        try {
+            in.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    // writeUTF() is limited to 64k
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Parses parameter sets on the node that has the workspace.
+     */
+    static abstract class Producer implements FileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+        private Pipe pipe;
+        /**
+         * Used instead of {@link #pipe} when the workspace is on this JVM.
+         */
+        private transient OutputStream localOut;
+
+        public final Void invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            OutputStream os = localOut != null ? localOut : pipe.getOut();
+            final Sink sink = new Sink(new DataOutputStream(new BufferedOutputStream(os)));
+            // sends what the producer has written so far while it waits
+            // for its input
+            Timer timer = new Timer("Flushing parameter sets", true);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        sink.flushIfIdle();
+                    } catch (IOException e) {
+                        // the producer gets it on its next write
+                        cancel();
+                    }
+                }
+            }, Sink.FLUSH_INTERVAL, Sink.FLUSH_INTERVAL);
+            try {
+                produce(dir, sink);
+                sink.end();
+            } finally {
+                timer.cancel();
+                sink.close();
+            }
+            return null;
+        }
+
+        protected abstract void produce(File dir, Sink sink) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Where a {@link Producer} writes the parameter sets. They are sent in
+     * batches, and whatever is buffered is sent when the producer has not
+     * added anything for a while.
+     */
+    static final class Sink {
+
+        /**
+         * How many parameter sets are sent at once, which is about what the
+         * consumer takes at a time.
+         */
+        private static final int FLUSH_COUNT = 100;
+        /**
+         * How long a parameter set may sit in the buffer while the producer
+         * is busy reading, in milliseconds.
+         */
+        private static final long FLUSH_INTERVAL = 1000;
+        private final DataOutputStream out;
+        private int buffered;
+        private boolean first = true;
+        private long lastAdd;
+
+        private Sink(DataOutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * @param label logged when the parameter set is triggered, if not
+         * empty.
+         * @param pairs keys and values, alternating.
+         */
+        synchronized void add(String label, String[] pairs) throws IOException {
+            out.writeInt(pairs.length);
+            writeString(out, label);
+            for (String s : pairs) {
+                writeString(out, s);
+            }
+            lastAdd = System.currentTimeMillis();
+            // get the first build going right away
+            if (++buffered >= FLUSH_COUNT || first) {
+                flush();
+                first = false;
+            }
+        }
+
+        synchronized void flushIfIdle() throws IOException {
+            if (buffered > 0 && System.currentTimeMillis() - lastAdd >= FLUSH_INTERVAL) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            out.flush();
+            buffered = 0;
+        }
+
+        synchronized void end() throws IOException {
+            out.writeInt(-1);
+            flush();
+        }
+
+        synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -64,10 +64,12 @@ public class ParameterizedDependency extends Dependency {
             List<Action> actionList = config.getBaseActions(build, listener);
             if (!actionList.isEmpty()) {
                 actions.addAll(config.getBuildActions(actionList, getDownstreamProject()));
+                config.awaitRateLimit();
                 return true;
             }
 
             if (config.getTriggerWithNoParameters()) {
+                config.awaitRateLimit();
                 return true;
             }
             listener.getLogger().println("[parameterized-trigger] Downstream builds will not be triggered as no parameter is set.");
@@ -75,6 +77,9 @@ public class ParameterizedDependency extends Dependency {
         } catch (AbstractBuildParameters.DontTriggerException ex) {
             // don't trigger on this configuration
             return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
         } catch (Exception ex) {
             listener.error("Failed to build parameters to trigger project: "
                     + getDownstreamProject().getName());
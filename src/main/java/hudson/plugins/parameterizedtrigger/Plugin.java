@@ -21,6 +21,14 @@ public class Plugin extends hudson.Plugin {
                 ResultCondition.class);
     }
 
+    @Override
+    public void stop() throws Exception {
+        TriggerBuilder.DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(TriggerBuilder.DescriptorImpl.class);
+        if (descriptor != null) {
+            descriptor.shutdown();
+        }
+    }
+
     /**
      * If a job is renamed, update all parameterized-triggers with the new name.
      */
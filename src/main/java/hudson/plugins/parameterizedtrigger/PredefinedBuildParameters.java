@@ -5,6 +5,7 @@ import hudson.Extension;
 import hudson.model.AbstractBuild;
 import hudson.model.Action;
 import hudson.model.Descriptor;
+import hudson.model.Hudson;
 import hudson.model.ParameterValue;
 import hudson.model.ParametersAction;
 import hudson.model.StringParameterValue;
@@ -13,7 +14,6 @@ import hudson.model.TaskListener;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
 
 import org.apache.tools.ant.filters.StringInputStream;
@@ -22,10 +22,68 @@ import org.kohsuke.stapler.DataBoundConstructor;
 public class PredefinedBuildParameters extends AbstractBuildParameters {
 
     private final String properties;
+    /**
+     * {@link #properties} parsed, in the order they are written.
+     */
+    private transient final String[] keys;
+    private transient final String[] values;
 
     @DataBoundConstructor
     public PredefinedBuildParameters(String properties) {
         this.properties = properties;
+        String[] pairs = parse(properties);
+        this.keys = new String[pairs.length / 2];
+        this.values = new String[pairs.length / 2];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = pairs[2 * i];
+            values[i] = pairs[2 * i + 1];
+        }
+    }
+
+    /**
+     * For parameters that are already parsed, or that compute them some other
+     * way. The arrays are not copied, and must not be changed afterwards.
+     */
+    PredefinedBuildParameters(String[] keys, String[] values) {
+        this.properties = null;
+        this.keys = keys;
+        this.values = values;
+    }
+
+    /**
+     * The parsed properties are not saved, so they are parsed again when the
+     * configuration is loaded.
+     */
+    public Object readResolve() {
+        return properties == null ? this : new PredefinedBuildParameters(properties);
+    }
+
+    private static String[] parse(String properties) {
+        OrderedProperties p = new OrderedProperties();
+        if (properties != null) {
+            try {
+                p.load(new StringInputStream(properties));
+            } catch (IOException e) {
+                // cannot happen when reading from a string
+                throw new IllegalStateException(e);
+            }
+        }
+        return p.toPairs();
+    }
+
+    /**
+     * @return how many parameters there are.
+     */
+    protected final int getParameterCount() {
+        return keys.length;
+    }
+
+    protected final String getKey(int i) {
+        return keys[i];
+    }
+
+    protected final String getValue(int i) {
+        return values[i];
     }
 
     public Action getAction(AbstractBuild<?, ?> build, TaskListener listener)
@@ -33,22 +91,125 @@ public class PredefinedBuildParameters extends AbstractBuildParameters {
 
         EnvVars env = getEnvironment(build, listener);
 
-        Properties p = new Properties();
-        p.load(new StringInputStream(properties));
-
-        List<ParameterValue> values = new ArrayList<ParameterValue>();
-        for (Map.Entry<Object, Object> entry : p.entrySet()) {
-            values.add(new StringParameterValue(entry.getKey().toString(),
-                    env.expand(entry.getValue().toString())));
+        List<ParameterValue> parameters = new ArrayList<ParameterValue>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            parameters.add(new StringParameterValue(keys[i], env.expand(values[i])));
         }
 
-        return new ParametersAction(values);
+        return new ParametersAction(parameters);
     }
 
     public String getProperties() {
         return properties;
     }
 
+    /**
+     * {@link Properties} that remember the order their keys were first read
+     * in.
+     */
+    static final class OrderedProperties extends Properties {
+
+        private final List<Object> order = new ArrayList<Object>();
+
+        @Override
+        public synchronized Object put(Object key, Object value) {
+            Object old = super.put(key, value);
+            if (old == null) {
+                order.add(key);
+            }
+            return old;
+        }
+
+        /**
+         * @return keys and values, alternating.
+         */
+        synchronized String[] toPairs() {
+            String[] pairs = new String[order.size() * 2];
+            int i = 0;
+            for (Object key : order) {
+                pairs[i++] = key.toString();
+                pairs[i++] = get(key).toString();
+            }
+            return pairs;
+        }
+    }
+
+    /**
+     * Parameters whose properties have already been parsed, for example on
+     * the node that had the file they come from.
+     */
+    static final class Parsed extends PredefinedBuildParameters {
+
+        Parsed(String[] keys, String[] values) {
+            super(keys, values);
+        }
+
+        /**
+         * @param pairs keys and values, alternating.
+         */
+        static Parsed fromPairs(String[] pairs) {
+            String[] keys = new String[pairs.length / 2];
+            String[] values = new String[pairs.length / 2];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = pairs[2 * i];
+                values[i] = pairs[2 * i + 1];
+            }
+            return new Parsed(keys, values);
+        }
+
+        @Override
+        public String getProperties() {
+            StringBuilder buf = new StringBuilder();
+            for (int i = 0; i < getParameterCount(); i++) {
+                escape(getKey(i), true, buf);
+                buf.append('=');
+                escape(getValue(i), false, buf);
+                buf.append('\n');
+            }
+            return buf.toString();
+        }
+
+        private static void escape(String s, boolean key, StringBuilder buf) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '\\':
+                    case '=':
+                    case ':':
+                    case '#':
+                    case '!':
+                        buf.append('\\').append(c);
+                        break;
+                    case ' ':
+                        if (key || i == 0) {
+                            buf.append('\\');
+                        }
+                        buf.append(c);
+                        break;
+                    case '\n':
+                        buf.append("\\n");
+                        break;
+                    case '\r':
+                        buf.append("\\r");
+                        break;
+                    case '\t':
+                        buf.append("\\t");
+                        break;
+                    case '\f':
+                        buf.append("\\f");
+                        break;
+                    default:
+                        buf.append(c);
+                }
+            }
+        }
+
+        @Override
+        public Descriptor<AbstractBuildParameters> getDescriptor() {
+            return Hudson.getInstance().getDescriptorOrDie(PredefinedBuildParameters.class);
+        }
+    }
+
     @Extension
     public static class DescriptorImpl extends Descriptor<AbstractBuildParameters> {
 
@@ -0,0 +1,82 @@
+package hudson.plugins.parameterizedtrigger;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Lets trigger threads sleep until builds of a project leave the queue, so
+ * that an item the queue refused can be retried as soon as it may be
+ * accepted rather than on a fixed schedule.
+ */
+public final class QueueWatcher {
+
+    private static final Object LOCK = new Object();
+    /**
+     * Number of builds started per job. Guarded by {@link #LOCK}.
+     */
+    private static final Map<Job, long[]> STARTED = new WeakHashMap<Job, long[]>();
+
+    private QueueWatcher() {
+    }
+
+    /**
+     * @return a value to pass to {@link #awaitChange} to wait for the next
+     * build of the job to leave the queue.
+     */
+    public static long getChangeCount(Job job) {
+        synchronized (LOCK) {
+            long[] count = STARTED.get(job);
+            return count == null ? 0 : count[0];
+        }
+    }
+
+    /**
+     * Waits until a build of the job left the queue after
+     * {@link #getChangeCount} returned {@code seen}, or until the timeout
+     * elapses.
+     */
+    public static void awaitChange(Job job, long seen, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (LOCK) {
+            long remaining = timeout;
+            while (remaining > 0 && getChangeCount(job) == seen) {
+                LOCK.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    private static void changed(Job job) {
+        synchronized (LOCK) {
+            long[] count = STARTED.get(job);
+            if (count == null) {
+                STARTED.put(job, count = new long[1]);
+            }
+            count[0]++;
+            LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * A build leaving the queue is what lets the queue accept an item it
+     * refused as a duplicate.
+     */
+    @Extension
+    public static class ListenerImpl extends RunListener<Run> {
+
+        public ListenerImpl() {
+            super(Run.class);
+        }
+
+        @Override
+        public void onStarted(Run r, TaskListener listener) {
+            changed(r.getParent());
+        }
+    }
+}
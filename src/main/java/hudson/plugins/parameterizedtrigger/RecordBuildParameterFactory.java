@@ -0,0 +1,250 @@
+package hudson.plugins.parameterizedtrigger;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Generates one set of parameters per record of a CSV, TSV or JSON lines
+ * file, such as a manifest of test shards.
+ *
+ * <p>
+ * The file is read through a file channel on the node that has the
+ * workspace, and the records are streamed back as they are parsed, so
+ * neither side holds the whole file in memory.
+ */
+public class RecordBuildParameterFactory extends AbstractBuildParameterFactory {
+
+    public enum Format {
+
+        /**
+         * Comma separated values, with a header line naming the parameters.
+         * Values may be quoted with {@code "}.
+         */
+        CSV("CSV, with a header line") {
+            @Override
+            void read(BufferedReader in, ParameterSetStream.Sink sink) throws IOException {
+                readDelimited(in, ',', true, sink);
+            }
+        },
+        /**
+         * Tab separated values, with a header line naming the parameters.
+         */
+        TSV("TSV, with a header line") {
+            @Override
+            void read(BufferedReader in, ParameterSetStream.Sink sink) throws IOException {
+                readDelimited(in, '\t', false, sink);
+            }
+        },
+        /**
+         * One JSON object per line, whose properties are the parameters.
+         */
+        JSONL("JSON lines") {
+            @Override
+            void read(BufferedReader in, ParameterSetStream.Sink sink) throws IOException {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.trim().length() == 0) {
+                        continue;
+                    }
+                    JSONObject o = JSONObject.fromObject(line);
+                    List<String> pairs = new ArrayList<String>();
+                    for (Iterator<?> it = o.keys(); it.hasNext();) {
+                        String key = it.next().toString();
+                        Object value = o.get(key);
+                        pairs.add(key);
+                        pairs.add(value instanceof JSONNull ? "" : value.toString());
+                    }
+                    sink.add("", pairs.toArray(new String[pairs.size()]));
+                }
+            }
+        };
+        private final String displayName;
+
+        Format(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        abstract void read(BufferedReader in, ParameterSetStream.Sink sink) throws IOException;
+    }
+    /**
+     * Characters decoded at a time.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final String file;
+    private final Format format;
+
+    @DataBoundConstructor
+    public RecordBuildParameterFactory(String file, Format format) {
+        this.file = file;
+        this.format = format;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    @Override
+    public List<AbstractBuildParameters> getParameters(AbstractBuild<?, ?> build, TaskListener listener) throws IOException, InterruptedException, AbstractBuildParameters.DontTriggerException {
+        List<AbstractBuildParameters> result = new ArrayList<AbstractBuildParameters>();
+        for (Iterator<AbstractBuildParameters> it = streamParameters(build, listener); it.hasNext();) {
+            result.add(it.next());
+        }
+        return result;
+    }
+
+    @Override
+    public String getMemoKey(AbstractBuild<?, ?> build, TaskListener listener) throws IOException, InterruptedException {
+        if (getWorkspace(build) == null) {
+            return null;
+        }
+        return build.getEnvironment(listener).expand(file) + '\0' + format;
+    }
+
+    @Override
+    public Iterator<AbstractBuildParameters> streamParameters(AbstractBuild<?, ?> build, TaskListener listener) throws IOException, InterruptedException, AbstractBuildParameters.DontTriggerException {
+        String path = build.getEnvironment(listener).expand(file);
+        return ParameterSetStream.open(getWorkspace(build), new StreamRecords(path, format), listener);
+    }
+
+    private FilePath getWorkspace(AbstractBuild build) {
+        FilePath workspace = build.getWorkspace();
+        if (workspace == null) {
+            workspace = build.getProject().getSomeWorkspace();
+        }
+        return workspace;
+    }
+
+    /**
+     * Reads the records on the node that has the workspace.
+     */
+    private static final class StreamRecords extends ParameterSetStream.Producer {
+
+        private static final long serialVersionUID = 1L;
+        private final String path;
+        private final Format format;
+
+        StreamRecords(String path, Format format) {
+            this.path = path;
+            this.format = format;
+        }
+
+        @Override
+        protected void produce(File dir, ParameterSetStream.Sink sink) throws IOException, InterruptedException {
+            File f = new File(path);
+            if (!f.isAbsolute()) {
+                f = new File(dir, path);
+            }
+            FileChannel channel = new FileInputStream(f).getChannel();
+            try {
+                format.read(new BufferedReader(Channels.newReader(channel, "UTF-8"), BUFFER_SIZE), sink);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Reads records of delimited values, the first of which names the
+     * parameters.
+     */
+    private static void readDelimited(BufferedReader in, char separator, boolean quoting, ParameterSetStream.Sink sink) throws IOException {
+        List<String> header = readRecord(in, separator, quoting);
+        if (header == null) {
+            return;
+        }
+        List<String> record;
+        while ((record = readRecord(in, separator, quoting)) != null) {
+            if (record.size() == 1 && record.get(0).length() == 0) {
+                continue; // blank line
+            }
+            String[] pairs = new String[header.size() * 2];
+            for (int i = 0; i < header.size(); i++) {
+                pairs[2 * i] = header.get(i).trim();
+                pairs[2 * i + 1] = i < record.size() ? record.get(i) : "";
+            }
+            sink.add("", pairs);
+        }
+    }
+
+    /**
+     * Reads one record. With quoting, values in {@code "} may contain the
+     * separator, line breaks and {@code ""} for a quote.
+     *
+     * @return {@code null} at the end of the input.
+     */
+    static List<String> readRecord(BufferedReader in, char separator, boolean quoting) throws IOException {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean any = false;
+        int c;
+        while ((c = in.read()) != -1) {
+            any = true;
+            if (quoted) {
+                if (c == '"') {
+                    in.mark(1);
+                    if (in.read() == '"') {
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                        in.reset();
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (quoting && c == '"' && field.length() == 0) {
+                quoted = true;
+            } else if (c == separator) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n') {
+                break;
+            } else if (c == '\r') {
+                in.mark(1);
+                if (in.read() != '\n') {
+                    in.reset();
+                }
+                break;
+            } else {
+                field.append((char) c);
+            }
+        }
+        if (!any) {
+            return null;
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends AbstractBuildParameterFactoryDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return Messages.RecordBuildParameterFactory_RecordBuildParameterFactory();
+        }
+    }
+}
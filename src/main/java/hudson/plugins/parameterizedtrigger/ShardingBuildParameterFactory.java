@@ -0,0 +1,348 @@
+package hudson.plugins.parameterizedtrigger;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Project;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.StringParameterValue;
+import hudson.model.TaskListener;
+import hudson.tasks.Builder;
+import hudson.tasks.Publisher;
+import hudson.util.FormValidation;
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Splits the work items listed in a workspace file into a number of shards,
+ * one build each, so that the shards take about the same time.
+ *
+ * <p>
+ * How long each item takes is estimated from earlier builds of the triggered
+ * projects: the duration of a build is divided evenly among the items it got.
+ * The items are then assigned longest first, each to the shard with the least
+ * work so far, which keeps the slowest shard, and so the blocking step, short.
+ */
+public class ShardingBuildParameterFactory extends AbstractBuildParameterFactory {
+
+    /**
+     * How many earlier builds of each triggered project to learn durations
+     * from.
+     */
+    private static final int HISTORY = 50;
+    private static final String DEFAULT_SEPARATOR = ",";
+    private final String itemsFile;
+    private final String shards;
+    private final String parameterName;
+    /**
+     * Put between the items of a shard. {@code null} in configurations saved
+     * before it could be changed.
+     */
+    private final String separator;
+
+    @DataBoundConstructor
+    public ShardingBuildParameterFactory(String itemsFile, String shards, String parameterName, String separator) {
+        this.itemsFile = itemsFile;
+        this.shards = shards;
+        this.parameterName = Util.fixEmptyAndTrim(parameterName) == null ? "SHARD_ITEMS" : parameterName.trim();
+        this.separator = Util.fixEmpty(separator);
+    }
+
+    public ShardingBuildParameterFactory(String itemsFile, String shards, String parameterName) {
+        this(itemsFile, shards, parameterName, null);
+    }
+
+    public String getItemsFile() {
+        return itemsFile;
+    }
+
+    public String getShards() {
+        return shards;
+    }
+
+    public String getParameterName() {
+        return parameterName;
+    }
+
+    public String getSeparator() {
+        return separator == null ? DEFAULT_SEPARATOR : separator;
+    }
+
+    @Override
+    public List<AbstractBuildParameters> getParameters(AbstractBuild<?, ?> build, TaskListener listener) throws IOException, InterruptedException, AbstractBuildParameters.DontTriggerException {
+        EnvVars env = build.getEnvironment(listener);
+        int shardCount = Integer.parseInt(env.expand(shards).trim());
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Number of shards must be positive: " + shardCount);
+        }
+
+        FilePath file = getWorkspace(build).child(env.expand(itemsFile));
+        byte[] contents;
+        InputStream in = file.read();
+        try {
+            contents = IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+        List<String> items = readItems(new String(contents, "UTF-8"));
+        for (String item : items) {
+            // the triggered builds could not tell the items apart
+            if (item.contains(getSeparator())) {
+                throw new AbortException("Work item '" + item + "' contains the separator '" + getSeparator()
+                        + "', use another separator");
+            }
+        }
+        List<AbstractProject> projects = getTriggeredProjects(build, env);
+        if (projects.isEmpty()) {
+            listener.getLogger().println("Could not find the projects triggered with the shards of " + itemsFile
+                    + ", splitting without durations from earlier builds");
+        }
+        Map<String, Double> estimates = estimateDurations(projects);
+        List<List<String>> assignment = partition(items, estimates, shardCount);
+
+        List<AbstractBuildParameters> result = new ArrayList<AbstractBuildParameters>();
+        for (int i = 0; i < assignment.size(); i++) {
+            result.add(new PredefinedBuildParameters.Parsed(
+                    new String[]{parameterName, "SHARD_INDEX", "SHARD_COUNT"},
+                    new String[]{Util.join(assignment.get(i), getSeparator()), Integer.toString(i), Integer.toString(assignment.size())}));
+        }
+        listener.getLogger().println("Split " + items.size() + " items into " + assignment.size() + " shards, "
+                + estimates.size() + " of them with known durations");
+        return result;
+    }
+
+    /**
+     * Durations depend on the triggered projects, so the same factory in
+     * triggers of other projects is not equivalent.
+     */
+    @Override
+    public String getMemoKey(AbstractBuild<?, ?> build, TaskListener listener) throws IOException, InterruptedException {
+        FilePath workspace = getWorkspace(build);
+        if (workspace == null) {
+            return null;
+        }
+        EnvVars env = build.getEnvironment(listener);
+        StringBuilder key = new StringBuilder(env.expand(itemsFile)).append('\0').append(env.expand(shards))
+                .append('\0').append(parameterName).append('\0').append(getSeparator());
+        for (AbstractProject<?, ?> p : getTriggeredProjects(build, env)) {
+            key.append('\0').append(p.getFullName());
+        }
+        return key.toString();
+    }
+
+    private FilePath getWorkspace(AbstractBuild<?, ?> build) {
+        FilePath workspace = build.getWorkspace();
+        if (workspace == null) {
+            workspace = build.getProject().getSomeWorkspace();
+        }
+        return workspace;
+    }
+
+    /**
+     * @return the distinct items, one per line, skipping blank lines and
+     * comments.
+     */
+    static List<String> readItems(String text) {
+        Set<String> items = new LinkedHashSet<String>();
+        for (String line : text.split("\r?\n")) {
+            line = line.trim();
+            if (line.length() > 0 && !line.startsWith("#")) {
+                items.add(line);
+            }
+        }
+        return new ArrayList<String>(items);
+    }
+
+    /**
+     * @return the projects triggered by the config this factory belongs to,
+     * or an empty list if the config is not among the builders and publishers
+     * of the project, like when the job has been reconfigured since.
+     */
+    private List<AbstractProject> getTriggeredProjects(AbstractBuild<?, ?> build, EnvVars env) {
+        List<BuildTriggerConfig> configs = new ArrayList<BuildTriggerConfig>();
+        if (build.getProject() instanceof Project) {
+            Project<?, ?> p = (Project<?, ?>) build.getProject();
+            for (Builder b : p.getBuilders()) {
+                if (b instanceof TriggerBuilder) {
+                    configs.addAll(((TriggerBuilder) b).getConfigs());
+                }
+            }
+            for (Publisher pub : p.getPublishersList()) {
+                if (pub instanceof BuildTrigger) {
+                    configs.addAll(((BuildTrigger) pub).getConfigs());
+                }
+            }
+        }
+        for (BuildTriggerConfig config : configs) {
+            if (config.getConfigFactories() != null) {
+                for (AbstractBuildParameterFactory f : config.getConfigFactories()) {
+                    if (f == this) {
+                        return config.getProjectList(build.getProject().getParent(), env);
+                    }
+                }
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return the average time per item, in milliseconds, of the items that
+     * earlier builds of the projects got.
+     */
+    private Map<String, Double> estimateDurations(List<AbstractProject> projects) {
+        Map<String, double[]> totals = new HashMap<String, double[]>();
+        for (AbstractProject<?, ?> project : projects) {
+            int n = 0;
+            for (Run<?, ?> r = project.getLastCompletedBuild(); r != null && n < HISTORY; r = r.getPreviousBuild()) {
+                if (r.isBuilding() || r.getResult() == Result.ABORTED) {
+                    continue;
+                }
+                n++;
+                ParametersAction action = r.getAction(ParametersAction.class);
+                ParameterValue value = action == null ? null : action.getParameter(parameterName);
+                if (!(value instanceof StringParameterValue)) {
+                    continue;
+                }
+                List<String> got = new ArrayList<String>();
+                for (String item : ((StringParameterValue) value).value.split(Pattern.quote(getSeparator()))) {
+                    if (item.trim().length() > 0) {
+                        got.add(item.trim());
+                    }
+                }
+                for (String item : got) {
+                    double[] total = totals.get(item);
+                    if (total == null) {
+                        totals.put(item, total = new double[2]);
+                    }
+                    total[0] += (double) r.getDuration() / got.size();
+                    total[1]++;
+                }
+            }
+        }
+
+        Map<String, Double> estimates = new HashMap<String, Double>();
+        for (Map.Entry<String, double[]> e : totals.entrySet()) {
+            estimates.put(e.getKey(), e.getValue()[0] / e.getValue()[1]);
+        }
+        return estimates;
+    }
+
+    /**
+     * Assigns the longest items first, each to the shard with the least
+     * estimated work. Items without an estimate count as the average item.
+     *
+     * @return the non-empty shards, each listing its items in their original
+     * order.
+     */
+    static List<List<String>> partition(List<String> items, Map<String, Double> estimates, int shardCount) {
+        double known = 0;
+        int knownCount = 0;
+        for (String item : items) {
+            Double d = estimates.get(item);
+            if (d != null) {
+                known += d;
+                knownCount++;
+            }
+        }
+        double fallback = knownCount == 0 ? 1 : known / knownCount;
+
+        final Map<String, Double> weights = new HashMap<String, Double>();
+        final Map<String, Integer> positions = new HashMap<String, Integer>();
+        for (int i = 0; i < items.size(); i++) {
+            String item = items.get(i);
+            Double d = estimates.get(item);
+            weights.put(item, d != null ? d : fallback);
+            positions.put(item, i);
+        }
+        List<String> byWeight = new ArrayList<String>(items);
+        Collections.sort(byWeight, new Comparator<String>() {
+            public int compare(String a, String b) {
+                int c = Double.compare(weights.get(b), weights.get(a));
+                return c != 0 ? c : positions.get(a) - positions.get(b);
+            }
+        });
+
+        int count = Math.min(shardCount, items.size());
+        PriorityQueue<Shard> queue = new PriorityQueue<Shard>();
+        List<Shard> shards = new ArrayList<Shard>();
+        for (int i = 0; i < count; i++) {
+            Shard s = new Shard(i);
+            shards.add(s);
+            queue.add(s);
+        }
+        for (String item : byWeight) {
+            Shard s = queue.poll();
+            s.items.add(item);
+            s.load += weights.get(item);
+            queue.add(s);
+        }
+
+        List<List<String>> result = new ArrayList<List<String>>();
+        for (Shard s : shards) {
+            Collections.sort(s.items, new Comparator<String>() {
+                public int compare(String a, String b) {
+                    return positions.get(a) - positions.get(b);
+                }
+            });
+            result.add(s.items);
+        }
+        return result;
+    }
+
+    private static final class Shard implements Comparable<Shard> {
+
+        private final int index;
+        private final List<String> items = new ArrayList<String>();
+        private double load;
+
+        Shard(int index) {
+            this.index = index;
+        }
+
+        public int compareTo(Shard o) {
+            int c = Double.compare(load, o.load);
+            return c != 0 ? c : index - o.index;
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends AbstractBuildParameterFactoryDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return Messages.ShardingBuildParameterFactory_ShardingBuildParameterFactory();
+        }
+
+        public FormValidation doCheckShards(@QueryParameter String value) {
+            if (value.contains("$")) {
+                return FormValidation.ok();
+            }
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckItemsFile(@QueryParameter String value) {
+            return FormValidation.validateRequired(value);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package hudson.plugins.parameterizedtrigger;
+
+/**
+ * Token bucket that limits how many builds are put in the queue per second.
+ * It holds at most one second worth of tokens, so bursts stay short.
+ */
+final class TokenBucket {
+
+    /**
+     * Tokens added per millisecond.
+     */
+    private final double rate;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket(double perSecond) {
+        this.rate = perSecond / 1000;
+        this.capacity = Math.max(1, perSecond);
+        this.tokens = capacity;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * Waits until a token is available, then takes as many as are available,
+     * up to {@code max}.
+     *
+     * @return the number of tokens taken, at least one.
+     */
+    int acquire(int max) throws InterruptedException {
+        while (true) {
+            long wait;
+            synchronized (this) {
+                int n = tryAcquire(max);
+                if (n > 0) {
+                    return n;
+                }
+                wait = getDelay();
+            }
+            Thread.sleep(Math.max(1, wait));
+        }
+    }
+
+    /**
+     * Takes as many tokens as are available, up to {@code max}, without
+     * waiting.
+     *
+     * @return the number of tokens taken, 0 if none is available.
+     */
+    synchronized int tryAcquire(int max) {
+        refill();
+        if (tokens < 1) {
+            return 0;
+        }
+        int n = (int) Math.min(max, Math.floor(tokens));
+        tokens -= n;
+        return n;
+    }
+
+    /**
+     * @return how long until a token is available, in milliseconds.
+     */
+    synchronized long getDelay() {
+        refill();
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / rate);
+    }
+
+    /**
+     * Gives back tokens that were acquired but not used.
+     */
+    synchronized void refund(int n) {
+        tokens = Math.min(capacity, tokens + n);
+    }
+
+    private void refill() {
+        long now = System.currentTimeMillis();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * rate);
+        lastRefill = now;
+    }
+}
@@ -31,24 +31,36 @@ import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
+import hudson.model.Computer;
 import hudson.model.DependecyDeclarer;
 import hudson.model.DependencyGraph;
+import hudson.model.Hudson;
+import hudson.model.Label;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Builder;
 import hudson.model.Action;
+import hudson.model.Descriptor.FormException;
 import hudson.model.TaskListener;
+import hudson.plugins.parameterizedtrigger.TriggerExecutor.ExecutionMode;
+import hudson.plugins.parameterizedtrigger.TriggerExecutor.SaturationPolicy;
+import net.sf.json.JSONObject;
+import hudson.util.FormValidation;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.CompletionService;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * {@link Builder} that triggers other projects and optionally waits for their
@@ -58,13 +70,32 @@ import java.util.concurrent.Executors;
  */
 public class TriggerBuilder extends Builder implements DependecyDeclarer {
 
+    /**
+     * Value of {@link #parallelism} that sizes the step to its configs and the
+     * idle executors of the projects it triggers.
+     */
+    public static final String ADAPTIVE = "adaptive";
+    /**
+     * How long to wait for downstream builds at a time while configs are
+     * still scheduling, in milliseconds.
+     */
+    private static final long SCHEDULING_POLL_INTERVAL = 100;
     private final ArrayList<BlockableBuildTriggerConfig> configs;
-    private final int NUM_THREADS = 10;
+    /**
+     * Maximum number of configs evaluated at once: a number,
+     * {@link #ADAPTIVE}, or blank to use the global default.
+     */
+    private final String parallelism;
 
     @DataBoundConstructor
-    public TriggerBuilder(List<BlockableBuildTriggerConfig> configs) {
+    public TriggerBuilder(List<BlockableBuildTriggerConfig> configs, String parallelism) {
         this.configs = new ArrayList<BlockableBuildTriggerConfig>(
                 Util.fixNull(configs));
+        this.parallelism = Util.fixEmptyAndTrim(parallelism);
+    }
+
+    public TriggerBuilder(List<BlockableBuildTriggerConfig> configs) {
+        this(configs, null);
     }
 
     public TriggerBuilder(BlockableBuildTriggerConfig... configs) {
@@ -75,6 +106,58 @@ public class TriggerBuilder extends Builder implements DependecyDeclarer {
         return configs;
     }
 
+    public String getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Resolves {@link #parallelism}, falling back to the global default.
+     */
+    int getMaxParallelism(AbstractBuild<?, ?> build, EnvVars env) {
+        String value = parallelism != null ? parallelism : getDescriptor().getDefaultParallelism();
+        if (ADAPTIVE.equals(value)) {
+            return getAdaptiveParallelism(build, env);
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return configs.size();
+        }
+    }
+
+    /**
+     * As many configs as there are, but no more than the idle executors that
+     * could run the triggered projects.
+     */
+    private int getAdaptiveParallelism(AbstractBuild<?, ?> build, EnvVars env) {
+        Set<Label> labels = new HashSet<Label>();
+        boolean anyNode = false;
+        for (BlockableBuildTriggerConfig config : configs) {
+            for (AbstractProject<?, ?> p : config.getProjectList(build.getRootBuild().getProject().getParent(), env)) {
+                Label label = p.getAssignedLabel();
+                if (label == null) {
+                    anyNode = true;
+                } else {
+                    labels.add(label);
+                }
+            }
+        }
+
+        int idle = 0;
+        if (anyNode) {
+            for (Computer c : Hudson.getInstance().getComputers()) {
+                if (c.isOnline()) {
+                    idle += c.countIdle();
+                }
+            }
+        } else {
+            for (Label label : labels) {
+                idle += label.getIdleExecutors();
+            }
+        }
+        return Math.max(1, Math.min(configs.size(), idle));
+    }
+
     @Override
     public BuildStepMonitor getRequiredMonitorService() {
         return BuildStepMonitor.NONE;
@@ -87,33 +170,90 @@ public class TriggerBuilder extends Builder implements DependecyDeclarer {
         env.overrideAll(build.getBuildVariables());
 
         boolean result = true;
-        ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
-        CompletionService<Boolean> ecs = new ExecutorCompletionService<Boolean>(
-                executor);
-        for (BlockableBuildTriggerConfig config : configs) {
-            ecs.submit(new BlockableBuildTriggerCallable(config, build, env,
-                    launcher, listener));
-        }
+        // earlier steps may have changed the files the factories read
+        FactoryMemo.forget(build);
+        int maxParallelism = getMaxParallelism(build, env);
+        TriggerExecutor.Step<Boolean> step = getDescriptor().getExecutor().openStep();
+        DownstreamWaitSet waitSet = DownstreamWaitSet.open(build);
+        try {
+            // only keep our fair share of the shared executor busy, and submit
+            // the remaining configs as earlier ones complete
+            Iterator<BlockableBuildTriggerConfig> pending = configs.iterator();
+            int running = 0;
+            while (pending.hasNext() && running < Math.min(maxParallelism, step.getFairShare())) {
+                if (submit(step, pending.next(), build, env, launcher, listener, waitSet)) {
+                    running++;
+                } else {
+                    result = false;
+                }
+            }
 
-        for (int i = 0; i < configs.size(); i++) {
-            Boolean configResult;
-            try {
-                configResult = ecs.take().get();
-            } catch (ExecutionException e) {
-                // TODO Auto-generated catch block
-                listener.getLogger().println(e.getMessage());
-                configResult = false;
+            while (running > 0) {
+                Future<Boolean> done = step.getCompletionService().poll();
+                if (done == null) {
+                    // handle the builds triggered so far, so that their
+                    // results and fail-fast apply while others are scheduled
+                    if (!waitSet.poll(listener, SCHEDULING_POLL_INTERVAL)) {
+                        done = step.getCompletionService().poll(SCHEDULING_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    }
+                    if (done == null) {
+                        continue;
+                    }
+                }
+                Boolean configResult;
+                try {
+                    configResult = done.get();
+                } catch (ExecutionException e) {
+                    listener.getLogger().println(e.getMessage());
+                    configResult = false;
+                }
+                running--;
+                // If any configs fail, set the overall result to false
+                result = result && configResult;
+
+                while (pending.hasNext() && !waitSet.isStopped()
+                        && running < Math.min(maxParallelism, step.getFairShare())) {
+                    if (submit(step, pending.next(), build, env, launcher, listener, waitSet)) {
+                        running++;
+                    } else {
+                        result = false;
+                    }
+                }
+            }
+            if (pending.hasNext()) {
+                listener.getLogger().println("Build step failed, not triggering the remaining configs.");
             }
-            // If any configs fail, set the overall result to false
-            result = result && configResult;
 
+            // all downstream builds are scheduled, now wait for the rest of
+            // them without holding any of the executor's threads
+            result = waitSet.await(listener) && result;
+        } finally {
+            waitSet.close();
+            step.close();
         }
 
-        executor.shutdown();
-
         return result;
     }
 
+    private boolean submit(TriggerExecutor.Step<Boolean> step, BlockableBuildTriggerConfig config,
+            AbstractBuild<?, ?> build, EnvVars env, Launcher launcher, BuildListener listener,
+            DownstreamWaitSet waitSet) {
+        try {
+            step.submit(new BlockableBuildTriggerCallable(config, build, env,
+                    launcher, listener, waitSet));
+            return true;
+        } catch (RejectedExecutionException e) {
+            listener.error("Too many triggers are pending, could not trigger "
+                    + config.getProjects());
+            return false;
+        }
+    }
+
+    @Override
+    public DescriptorImpl getDescriptor() {
+        return (DescriptorImpl) super.getDescriptor();
+    }
+
     public void buildDependencyGraph(AbstractProject owner,
             DependencyGraph graph) {
         for (BuildTriggerConfig config : configs) {
@@ -136,6 +276,33 @@ public class TriggerBuilder extends Builder implements DependecyDeclarer {
     @Extension
     public static class DescriptorImpl extends BuildStepDescriptor<Builder> {
 
+        private String defaultParallelism = "10";
+        private int threadPoolSize = 20;
+        private int queueCapacity = 1000;
+        private SaturationPolicy saturationPolicy = SaturationPolicy.CALLER_RUNS;
+        private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+        /**
+         * Seconds a blocking trigger keeps trying to put a build in the queue,
+         * 0 to keep trying forever.
+         */
+        private int scheduleTimeout = 0;
+        /**
+         * Builds all triggers together may put in the queue per second, 0 for
+         * no limit.
+         */
+        private int globalBuildsPerSecond = 0;
+        /**
+         * Kilobytes a properties file read by {@link FileBuildParameters} may
+         * have, 0 for no limit.
+         */
+        private int maxPropertiesFileSize = 0;
+        private transient TriggerExecutor executor;
+        private transient TokenBucket globalBucket;
+
+        public DescriptorImpl() {
+            load();
+        }
+
         @Override
         public String getDisplayName() {
             return "Trigger/call builds on other projects";
@@ -145,5 +312,153 @@ public class TriggerBuilder extends Builder implements DependecyDeclarer {
         public boolean isApplicable(Class<? extends AbstractProject> jobType) {
             return true;
         }
+
+        public String getDefaultParallelism() {
+            return defaultParallelism;
+        }
+
+        public int getThreadPoolSize() {
+            return threadPoolSize;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public SaturationPolicy getSaturationPolicy() {
+            return saturationPolicy;
+        }
+
+        public ExecutionMode getExecutionMode() {
+            return executionMode;
+        }
+
+        public int getScheduleTimeout() {
+            return scheduleTimeout;
+        }
+
+        public int getGlobalBuildsPerSecond() {
+            return globalBuildsPerSecond;
+        }
+
+        public int getMaxPropertiesFileSize() {
+            return maxPropertiesFileSize;
+        }
+
+        /**
+         * @return the rate limit shared by all triggers, or {@code null}.
+         */
+        synchronized TokenBucket getGlobalBucket() {
+            if (globalBuildsPerSecond == 0) {
+                return null;
+            }
+            if (globalBucket == null) {
+                globalBucket = new TokenBucket(globalBuildsPerSecond);
+            }
+            return globalBucket;
+        }
+
+        /**
+         * The executor shared by all {@link TriggerBuilder} steps.
+         */
+        public synchronized TriggerExecutor getExecutor() {
+            if (executor == null) {
+                executor = new TriggerExecutor(threadPoolSize, queueCapacity, saturationPolicy, executionMode);
+            }
+            return executor;
+        }
+
+        synchronized void shutdown() {
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+            if (json.has("defaultParallelism")) {
+                String value = Util.fixEmptyAndTrim(json.getString("defaultParallelism"));
+                if (value == null || doCheckParallelism(value).kind != FormValidation.Kind.OK) {
+                    throw new FormException("Default parallelism must be a positive number or '" + ADAPTIVE + "'", "defaultParallelism");
+                }
+                defaultParallelism = value;
+            }
+            threadPoolSize = parsePositive(json, "threadPoolSize", threadPoolSize);
+            queueCapacity = parsePositive(json, "queueCapacity", queueCapacity);
+            if (json.has("scheduleTimeout")) {
+                String value = Util.fixEmptyAndTrim(json.getString("scheduleTimeout"));
+                scheduleTimeout = value == null ? 0 : parseNonNegative(json, "scheduleTimeout");
+            }
+            if (json.has("saturationPolicy")) {
+                saturationPolicy = SaturationPolicy.valueOf(json.getString("saturationPolicy"));
+            }
+            if (json.has("globalBuildsPerSecond")) {
+                String value = Util.fixEmptyAndTrim(json.getString("globalBuildsPerSecond"));
+                int rate = value == null ? 0 : parseNonNegative(json, "globalBuildsPerSecond");
+                synchronized (this) {
+                    if (rate != globalBuildsPerSecond) {
+                        globalBuildsPerSecond = rate;
+                        globalBucket = null;
+                    }
+                }
+            }
+            if (json.has("maxPropertiesFileSize")) {
+                String value = Util.fixEmptyAndTrim(json.getString("maxPropertiesFileSize"));
+                maxPropertiesFileSize = value == null ? 0 : parseNonNegative(json, "maxPropertiesFileSize");
+            }
+            if (json.has("executionMode")) {
+                executionMode = ExecutionMode.valueOf(json.getString("executionMode"));
+            }
+            save();
+            synchronized (this) {
+                if (executor != null) {
+                    executor.configure(threadPoolSize, queueCapacity, saturationPolicy, executionMode);
+                }
+            }
+            return true;
+        }
+
+        public FormValidation doCheckExecutionMode(@QueryParameter String value) {
+            if (ExecutionMode.VIRTUAL.name().equals(value) && !TriggerExecutor.isVirtualThreadSupported()) {
+                return FormValidation.warning("This JVM does not support virtual threads, triggers will run on platform threads");
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckParallelism(@QueryParameter String value) {
+            value = Util.fixEmptyAndTrim(value);
+            if (value == null || ADAPTIVE.equals(value)) {
+                return FormValidation.ok();
+            }
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckDefaultParallelism(@QueryParameter String value) {
+            return doCheckParallelism(value);
+        }
+
+        private static int parsePositive(JSONObject json, String name, int current) throws FormException {
+            if (!json.has(name)) {
+                return current;
+            }
+            int value = parseNonNegative(json, name);
+            if (value == 0) {
+                throw new FormException(name + " must be a positive number", name);
+            }
+            return value;
+        }
+
+        private static int parseNonNegative(JSONObject json, String name) throws FormException {
+            try {
+                int value = Integer.parseInt(json.getString(name).trim());
+                if (value >= 0) {
+                    return value;
+                }
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+            throw new FormException(name + " must be a number", name);
+        }
     }
 }
@@ -0,0 +1,247 @@
+package hudson.plugins.parameterizedtrigger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Plugin-wide executor on which every {@link TriggerBuilder} step runs its
+ * {@link BlockableBuildTriggerCallable}s.
+ *
+ * <p>
+ * The pool is bounded both in threads and in queued tasks. To keep a single
+ * step with many configurations from monopolizing it, each step only gets a
+ * fair share of the threads at a time (see {@link Step#getFairShare()}).
+ *
+ * <p>
+ * On JVMs that have them, the callables can run on virtual threads instead,
+ * since they mostly wait on remoting calls and on the queue. The pool size
+ * then only determines the fair share of each step.
+ */
+public final class TriggerExecutor implements Executor {
+
+    /**
+     * What to do with a callable when both the threads and the queue of the
+     * executor are exhausted.
+     */
+    public enum SaturationPolicy {
+
+        /**
+         * Run the callable on the thread of the triggering build itself.
+         */
+        CALLER_RUNS("Run on the triggering build's thread") {
+            @Override
+            RejectedExecutionHandler createHandler() {
+                return new ThreadPoolExecutor.CallerRunsPolicy();
+            }
+        },
+        /**
+         * Reject the callable, which fails the build step.
+         */
+        ABORT("Fail the build step") {
+            @Override
+            RejectedExecutionHandler createHandler() {
+                return new ThreadPoolExecutor.AbortPolicy();
+            }
+        };
+        private final String displayName;
+
+        SaturationPolicy(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        abstract RejectedExecutionHandler createHandler();
+    }
+
+    /**
+     * Kind of threads the callables run on.
+     */
+    public enum ExecutionMode {
+
+        PLATFORM("Platform threads"),
+        VIRTUAL("Virtual threads, if supported by the JVM");
+        private final String displayName;
+
+        ExecutionMode(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+    private static final Logger LOGGER = Logger.getLogger(TriggerExecutor.class.getName());
+    private final AtomicInteger activeSteps = new AtomicInteger();
+    private ThreadPoolExecutor pool;
+    /**
+     * Used instead of {@link #pool} in {@link ExecutionMode#VIRTUAL} mode.
+     */
+    private ExecutorService virtualThreads;
+    private int poolSize;
+    private int queueCapacity;
+
+    TriggerExecutor(int poolSize, int queueCapacity, SaturationPolicy policy, ExecutionMode mode) {
+        configure(poolSize, queueCapacity, policy, mode);
+    }
+
+    /**
+     * Applies new sizing to the executor. Callables that are already queued or
+     * running keep running on the previous pool if it has to be replaced.
+     */
+    synchronized void configure(int poolSize, int queueCapacity, SaturationPolicy policy, ExecutionMode mode) {
+        poolSize = Math.max(1, poolSize);
+        queueCapacity = Math.max(1, queueCapacity);
+        if (pool != null && this.queueCapacity == queueCapacity) {
+            if (poolSize > this.poolSize) {
+                pool.setMaximumPoolSize(poolSize);
+                pool.setCorePoolSize(poolSize);
+            } else {
+                pool.setCorePoolSize(poolSize);
+                pool.setMaximumPoolSize(poolSize);
+            }
+            pool.setRejectedExecutionHandler(policy.createHandler());
+        } else {
+            ThreadPoolExecutor old = pool;
+            pool = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(queueCapacity),
+                    new TriggerThreadFactory(), policy.createHandler());
+            pool.allowCoreThreadTimeOut(true);
+            if (old != null) {
+                old.shutdown();
+            }
+        }
+        this.poolSize = poolSize;
+        this.queueCapacity = queueCapacity;
+
+        if (mode == ExecutionMode.VIRTUAL) {
+            if (virtualThreads == null) {
+                virtualThreads = newVirtualThreadExecutor();
+                if (virtualThreads == null) {
+                    LOGGER.info("Virtual threads are not supported by this JVM, triggers run on platform threads");
+                }
+            }
+        } else if (virtualThreads != null) {
+            virtualThreads.shutdown();
+            virtualThreads = null;
+        }
+    }
+
+    /**
+     * @return whether the JVM can run the callables on virtual threads.
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Looked up reflectively, as the plugin has to run on JVMs without
+     * virtual threads.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to create a virtual thread executor", e);
+            return null;
+        }
+    }
+
+    public synchronized int getPoolSize() {
+        return poolSize;
+    }
+
+    public void execute(Runnable command) {
+        Executor e;
+        synchronized (this) {
+            e = virtualThreads != null ? virtualThreads : pool;
+        }
+        e.execute(command);
+    }
+
+    synchronized void shutdown() {
+        pool.shutdown();
+        if (virtualThreads != null) {
+            virtualThreads.shutdown();
+        }
+    }
+
+    /**
+     * Registers a new {@link TriggerBuilder} step with this executor. The
+     * returned {@link Step} must be closed once the step is done.
+     */
+    public <V> Step<V> openStep() {
+        activeSteps.incrementAndGet();
+        return new Step<V>();
+    }
+
+    /**
+     * The view of the executor that one {@link TriggerBuilder} step submits
+     * its callables to.
+     */
+    public final class Step<V> {
+
+        private final CompletionService<V> completionService = new ExecutorCompletionService<V>(TriggerExecutor.this);
+        private boolean closed;
+
+        private Step() {
+        }
+
+        /**
+         * @return the number of callables this step may have submitted at
+         * once, given the number of steps currently sharing the executor.
+         */
+        public int getFairShare() {
+            return Math.max(1, getPoolSize() / Math.max(1, activeSteps.get()));
+        }
+
+        public CompletionService<V> getCompletionService() {
+            return completionService;
+        }
+
+        public void submit(Callable<V> task) {
+            completionService.submit(task);
+        }
+
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                activeSteps.decrementAndGet();
+            }
+        }
+    }
+
+    private static class TriggerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Parameterized trigger thread #" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
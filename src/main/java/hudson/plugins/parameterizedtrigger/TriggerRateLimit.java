@@ -0,0 +1,68 @@
+package hudson.plugins.parameterizedtrigger;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Limits how fast a {@link BuildTriggerConfig} puts builds in the queue, and
+ * how many of them may be queued or running at once.
+ */
+public class TriggerRateLimit extends AbstractDescribableImpl<TriggerRateLimit> {
+
+    private final int buildsPerSecond;
+    private final int maxInFlight;
+    private transient TokenBucket bucket;
+
+    /**
+     * @param buildsPerSecond 0 for no limit.
+     * @param maxInFlight 0 for no limit.
+     */
+    @DataBoundConstructor
+    public TriggerRateLimit(int buildsPerSecond, int maxInFlight) {
+        this.buildsPerSecond = Math.max(0, buildsPerSecond);
+        this.maxInFlight = Math.max(0, maxInFlight);
+    }
+
+    public int getBuildsPerSecond() {
+        return buildsPerSecond;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @return the bucket shared by all builds using this config, or
+     * {@code null} if the rate is not limited.
+     */
+    synchronized TokenBucket getBucket() {
+        if (buildsPerSecond == 0) {
+            return null;
+        }
+        if (bucket == null) {
+            bucket = new TokenBucket(buildsPerSecond);
+        }
+        return bucket;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<TriggerRateLimit> {
+
+        @Override
+        public String getDisplayName() {
+            return ""; // unused
+        }
+
+        public FormValidation doCheckBuildsPerSecond(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckMaxInFlight(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+    }
+}
@@ -2,23 +2,35 @@ package hudson.plugins.parameterizedtrigger.test;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import hudson.EnvVars;
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
 import hudson.model.Cause;
 import hudson.model.FreeStyleBuild;
+import hudson.model.InvisibleAction;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
 import hudson.model.Project;
 import hudson.model.Result;
+import hudson.model.TaskListener;
 import hudson.plugins.parameterizedtrigger.AbstractBuildParameterFactory;
 import hudson.plugins.parameterizedtrigger.AbstractBuildParameters;
 import hudson.plugins.parameterizedtrigger.BlockableBuildTriggerConfig;
 import hudson.plugins.parameterizedtrigger.BlockingBehaviour;
 import hudson.plugins.parameterizedtrigger.CounterBuildParameterFactory;
+import hudson.plugins.parameterizedtrigger.PredefinedBuildParameters;
 import hudson.plugins.parameterizedtrigger.TriggerBuilder;
+import hudson.plugins.parameterizedtrigger.TriggerRateLimit;
 import org.jvnet.hudson.test.HudsonTestCase;
+import org.jvnet.hudson.test.SleepBuilder;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CounterBuildParameterFactoryTest extends HudsonTestCase {
 
@@ -84,4 +96,218 @@ public class CounterBuildParameterFactoryTest extends HudsonTestCase {
         assertEquals(ImmutableSet.of("COUNT0", "COUNT1"), values);
         assertEquals(ImmutableSet.of("COUNT0", "COUNT1", "COUNT2"), newValues);
     }
+
+    public void testParametersKeepTheirOrder() throws Exception {
+        Project<?, ?> projectA = createFreeStyleProject();
+        Project projectB = createFreeStyleProject();
+        projectA.getBuildersList().add(
+                new TriggerBuilder(
+                new BlockableBuildTriggerConfig(projectB.getName(), null,
+                new BlockingBehaviour(Result.FAILURE, Result.UNSTABLE, Result.FAILURE),
+                ImmutableList.<AbstractBuildParameterFactory>of(new CounterBuildParameterFactory("0", "0", "1", "B=$COUNT\nA=a\nC=c")),
+                Collections.<AbstractBuildParameters>emptyList())));
+        projectB.setQuietPeriod(0);
+        hudson.rebuildDependencyGraph();
+
+        projectA.scheduleBuild2(0, new Cause.UserCause()).get();
+        waitUntilNoActivity();
+        List<FreeStyleBuild> builds = projectB.getBuilds();
+        assertEquals(1, builds.size());
+        List<String> names = Lists.newArrayList();
+        for (ParameterValue value : builds.get(0).getAction(ParametersAction.class).getParameters()) {
+            names.add(value.getName());
+        }
+        assertEquals(ImmutableList.of("B", "A", "C"), names);
+    }
+
+    public void testWithRateLimit() throws Exception {
+        Project<?, ?> projectA = createFreeStyleProject();
+        Project projectB = createFreeStyleProject();
+        projectA.getBuildersList().add(
+                new TriggerBuilder(
+                new BlockableBuildTriggerConfig(projectB.getName(), null,
+                new BlockingBehaviour(Result.FAILURE, Result.UNSTABLE, Result.FAILURE),
+                ImmutableList.<AbstractBuildParameterFactory>of(new CounterBuildParameterFactory("1", "4", "1", "TEST=COUNT$COUNT")),
+                Collections.<AbstractBuildParameters>emptyList(),
+                new TriggerRateLimit(2, 2))));
+
+        CaptureAllEnvironmentBuilder builder = new CaptureAllEnvironmentBuilder();
+        projectB.getBuildersList().add(builder);
+        projectB.setQuietPeriod(0);
+        hudson.rebuildDependencyGraph();
+
+        FreeStyleBuild build = (FreeStyleBuild) projectA.scheduleBuild2(0, new Cause.UserCause()).get();
+        waitUntilNoActivity();
+        assertEquals(4, projectB.getBuilds().size());
+        assertLogContains("Scheduled 4 of 4 builds of " + projectB.getName(), build);
+    }
+
+    public void testWithMaxConcurrentPerProject() throws Exception {
+        Project<?, ?> projectA = createFreeStyleProject();
+        Project projectB = createFreeStyleProject();
+        projectA.getBuildersList().add(
+                new TriggerBuilder(
+                new BlockableBuildTriggerConfig(projectB.getName(), null,
+                new BlockingBehaviour(Result.FAILURE, Result.UNSTABLE, Result.FAILURE),
+                ImmutableList.<AbstractBuildParameterFactory>of(new CounterBuildParameterFactory("1", "3", "1", "TEST=COUNT$COUNT")),
+                Collections.<AbstractBuildParameters>emptyList(),
+                null, 1)));
+
+        projectB.getBuildersList().add(new SleepBuilder(500));
+        projectB.setConcurrentBuild(true);
+        projectB.setQuietPeriod(0);
+        hudson.rebuildDependencyGraph();
+
+        projectA.scheduleBuild2(0, new Cause.UserCause()).get();
+        List<FreeStyleBuild> builds = projectB.getBuilds();
+        assertEquals(3, builds.size());
+        // each build only got queued once the previous one completed
+        for (int i = 1; i < builds.size(); i++) {
+            FreeStyleBuild newer = builds.get(i - 1);
+            FreeStyleBuild older = builds.get(i);
+            assertTrue(newer.getTimeInMillis() >= older.getTimeInMillis() + older.getDuration());
+        }
+    }
+
+    public void testWithDuplicatesDropped() throws Exception {
+        Project<?, ?> projectA = createFreeStyleProject();
+        Project projectB = createFreeStyleProject();
+        projectA.getBuildersList().add(
+                new TriggerBuilder(
+                new BlockableBuildTriggerConfig(projectB.getName(), null,
+                new BlockingBehaviour(Result.FAILURE, Result.UNSTABLE, Result.FAILURE),
+                ImmutableList.<AbstractBuildParameterFactory>of(new CounterBuildParameterFactory("0", "5", "1", "TEST=COUNT$COUNT"),
+                new CounterBuildParameterFactory("1", "2", "1", "OTHER=same")),
+                Collections.<AbstractBuildParameters>emptyList(),
+                null, 0, true)));
+
+        projectB.setQuietPeriod(0);
+        hudson.rebuildDependencyGraph();
+
+        FreeStyleBuild build = (FreeStyleBuild) projectA.scheduleBuild2(0, new Cause.UserCause()).get();
+        waitUntilNoActivity();
+        assertEquals(6, projectB.getBuilds().size());
+        assertLogContains("Dropped 6 duplicate parameter set(s) for " + projectB.getName(), build);
+    }
+
+    public void testDuplicatesWithOtherActionsAreKept() throws Exception {
+        Project<?, ?> projectA = createFreeStyleProject();
+        Project projectB = createFreeStyleProject();
+        projectA.getBuildersList().add(
+                new TriggerBuilder(
+                new BlockableBuildTriggerConfig(projectB.getName(), null,
+                new BlockingBehaviour(Result.FAILURE, Result.UNSTABLE, Result.FAILURE),
+                ImmutableList.<AbstractBuildParameterFactory>of(new CounterBuildParameterFactory("1", "2", "1", "OTHER=same")),
+                ImmutableList.<AbstractBuildParameters>of(new OtherActionParameters()),
+                null, 0, true)));
+
+        projectB.setQuietPeriod(0);
+        hudson.rebuildDependencyGraph();
+
+        FreeStyleBuild build = (FreeStyleBuild) projectA.scheduleBuild2(0, new Cause.UserCause()).get();
+        waitUntilNoActivity();
+        // the other action might tell the builds apart
+        assertEquals(2, projectB.getBuilds().size());
+        assertLogContains("cannot be compared, not dropping them as duplicates", build);
+    }
+
+    public void testFactoryIsEvaluatedOncePerBuild() throws Exception {
+        Project<?, ?> projectA = createFreeStyleProject();
+        Project projectB = createFreeStyleProject();
+        Project projectC = createFreeStyleProject();
+        CountingFactory.calls.set(0);
+        projectA.getBuildersList().add(
+                new TriggerBuilder(
+                new BlockableBuildTriggerConfig(projectB.getName(), null,
+                new BlockingBehaviour(Result.FAILURE, Result.UNSTABLE, Result.FAILURE),
+                ImmutableList.<AbstractBuildParameterFactory>of(new CountingFactory()),
+                Collections.<AbstractBuildParameters>emptyList()),
+                new BlockableBuildTriggerConfig(projectC.getName(), null,
+                new BlockingBehaviour(Result.FAILURE, Result.UNSTABLE, Result.FAILURE),
+                ImmutableList.<AbstractBuildParameterFactory>of(new CountingFactory()),
+                Collections.<AbstractBuildParameters>emptyList())));
+
+        projectB.setQuietPeriod(0);
+        projectC.setQuietPeriod(0);
+        hudson.rebuildDependencyGraph();
+
+        projectA.scheduleBuild2(0, new Cause.UserCause()).get();
+        waitUntilNoActivity();
+        assertEquals(2, projectB.getBuilds().size());
+        assertEquals(2, projectC.getBuilds().size());
+        assertEquals(1, CountingFactory.calls.get());
+    }
+
+    public void testStaticParametersAreEvaluatedOnce() throws Exception {
+        Project<?, ?> projectA = createFreeStyleProject();
+        Project projectB = createFreeStyleProject();
+        CountingParameters.calls.set(0);
+        projectA.getBuildersList().add(
+                new TriggerBuilder(
+                new BlockableBuildTriggerConfig(projectB.getName(), null,
+                new BlockingBehaviour(Result.FAILURE, Result.UNSTABLE, Result.FAILURE),
+                ImmutableList.<AbstractBuildParameterFactory>of(new CounterBuildParameterFactory("1", "3", "1", "TEST=COUNT$COUNT")),
+                ImmutableList.<AbstractBuildParameters>of(new CountingParameters("FOO=bar\nTEST=static")))));
+        projectB.setConcurrentBuild(true);
+
+        CaptureAllEnvironmentBuilder builder = new CaptureAllEnvironmentBuilder();
+        projectB.getBuildersList().add(builder);
+        projectB.setQuietPeriod(0);
+        hudson.rebuildDependencyGraph();
+
+        projectA.scheduleBuild2(0, new Cause.UserCause()).get();
+        waitUntilNoActivity();
+        List<FreeStyleBuild> builds = projectB.getBuilds();
+        assertEquals(3, builds.size());
+        Set<String> values = Sets.newHashSet();
+        for (FreeStyleBuild build : builds) {
+            EnvVars buildEnvVar = builder.getEnvVars().get(build.getId());
+            assertEquals("bar", buildEnvVar.get("FOO"));
+            values.add(buildEnvVar.get("TEST"));
+        }
+        // factory parameters override the static ones
+        assertEquals(ImmutableSet.of("COUNT1", "COUNT2", "COUNT3"), values);
+        assertEquals(1, CountingParameters.calls.get());
+    }
+
+    public static class CountingFactory extends CounterBuildParameterFactory {
+
+        static final AtomicInteger calls = new AtomicInteger();
+
+        public CountingFactory() {
+            super("1", "2", "1", "TEST=COUNT$COUNT");
+        }
+
+        @Override
+        public List<AbstractBuildParameters> getParameters(AbstractBuild<?, ?> build, TaskListener listener) throws IOException, InterruptedException, AbstractBuildParameters.DontTriggerException {
+            calls.incrementAndGet();
+            return super.getParameters(build, listener);
+        }
+    }
+
+    public static class OtherActionParameters extends AbstractBuildParameters {
+
+        @Override
+        public Action getAction(AbstractBuild<?, ?> build, TaskListener listener) {
+            return new OtherAction();
+        }
+    }
+
+    public static class OtherAction extends InvisibleAction {
+    }
+
+    public static class CountingParameters extends PredefinedBuildParameters {
+
+        static final AtomicInteger calls = new AtomicInteger();
+
+        public CountingParameters(String properties) {
+            super(properties);
+        }
+
+        @Override
+        public Action getAction(AbstractBuild<?, ?> build, TaskListener listener) throws IOException, InterruptedException {
+            calls.incrementAndGet();
+            return super.getAction(build, listener);
+        }
+    }
 }
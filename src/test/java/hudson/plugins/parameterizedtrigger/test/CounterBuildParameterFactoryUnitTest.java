@@ -5,6 +5,7 @@ import hudson.model.AbstractBuild;
 import hudson.model.TaskListener;
 import hudson.plugins.parameterizedtrigger.AbstractBuildParameters;
 import hudson.plugins.parameterizedtrigger.CounterBuildParameterFactory;
+import hudson.plugins.parameterizedtrigger.PredefinedBuildParameters;
 import org.junit.Test;
 
 import java.io.IOException;
@@ -49,12 +50,29 @@ public class CounterBuildParameterFactoryUnitTest {
         assertEquals(1, parameters.size());
     }
 
+    @Test
+    public void countShouldBeSubstitutedInKeysAndValues() throws Exception {
+        List<AbstractBuildParameters> parameters = getParameters(10, 30, 10, "A$COUNT=${COUNT}\nB=$COUNTER-$COUNT");
+        assertEquals(3, parameters.size());
+        assertEquals("A20=20\nB=$COUNTER-20", ((PredefinedBuildParameters) parameters.get(1)).getProperties());
+    }
+
+    @Test
+    public void largeRangesShouldBeSupported() throws Exception {
+        List<AbstractBuildParameters> parameters = getParameters(0, 999999999, 1, "");
+        assertEquals(1000000000, parameters.size());
+    }
+
     private List<AbstractBuildParameters> getParameters(long from, long to, long step) throws IOException, InterruptedException, AbstractBuildParameters.DontTriggerException {
+        return getParameters(from, to, step, "");
+    }
+
+    private List<AbstractBuildParameters> getParameters(long from, long to, long step, String paramExpr) throws IOException, InterruptedException, AbstractBuildParameters.DontTriggerException {
         AbstractBuild<?, ?> build = mock(AbstractBuild.class);
         EnvVars vars = new EnvVars();
         TaskListener listener = mock(TaskListener.class);
         when(build.getEnvironment(listener)).thenReturn(vars);
-        CounterBuildParameterFactory counterFactory = new CounterBuildParameterFactory(from, to, step, "");
+        CounterBuildParameterFactory counterFactory = new CounterBuildParameterFactory(from, to, step, paramExpr);
         return counterFactory.getParameters(build, listener);
     }
 }
@@ -111,4 +111,30 @@ public class DefaultParametersTest extends HudsonTestCase {
         assertEquals("BAZ", "moo", envVars.get("BAZ"));
         assertEquals("HOHO", "blah", envVars.get("HOHO"));
     }
+
+    public void testChangedDefaultsAreUsed() throws Exception {
+        Project projectA = createFreeStyleProject("projectA");
+        Project projectB = createFreeStyleProject("projectB");
+        projectB.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("FOO", "bar")));
+        CaptureEnvironmentBuilder builder = new CaptureEnvironmentBuilder();
+        projectB.getBuildersList().add(builder);
+        projectB.setQuietPeriod(1);
+        projectA.getPublishersList().add(new BuildTrigger(
+                new BuildTriggerConfig("projectB", ResultCondition.SUCCESS,
+                new CurrentBuildParameters())));
+        hudson.rebuildDependencyGraph();
+
+        projectA.scheduleBuild2(0).get();
+        hudson.getQueue().getItem(projectB).getFuture().get();
+        assertEquals("bar", builder.getEnvVars().get("FOO"));
+
+        // saving the project has to drop the cached defaults
+        projectB.removeProperty(ParametersDefinitionProperty.class);
+        projectB.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("FOO", "baz")));
+        projectA.scheduleBuild2(0).get();
+        hudson.getQueue().getItem(projectB).getFuture().get();
+        assertEquals("baz", builder.getEnvVars().get("FOO"));
+    }
 }
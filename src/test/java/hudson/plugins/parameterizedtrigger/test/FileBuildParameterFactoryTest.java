@@ -0,0 +1,118 @@
+package hudson.plugins.parameterizedtrigger.test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.Project;
+import hudson.model.Result;
+import hudson.plugins.parameterizedtrigger.AbstractBuildParameterFactory;
+import hudson.plugins.parameterizedtrigger.AbstractBuildParameters;
+import hudson.plugins.parameterizedtrigger.BlockableBuildTriggerConfig;
+import hudson.plugins.parameterizedtrigger.BlockingBehaviour;
+import hudson.plugins.parameterizedtrigger.FileBuildParameterFactory;
+import hudson.plugins.parameterizedtrigger.TriggerBuilder;
+import org.jvnet.hudson.test.HudsonTestCase;
+import org.jvnet.hudson.test.TestBuilder;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+public class FileBuildParameterFactoryTest extends HudsonTestCase {
+
+    public void testOneBuildPerFile() throws Exception {
+        assertOneBuildPerFile(new FileBuildParameterFactory("*.properties"));
+    }
+
+    public void testOneBuildPerFileStreaming() throws Exception {
+        assertOneBuildPerFile(new FileBuildParameterFactory("*.properties", true));
+    }
+
+    public void testChangedFilesAreReadAgain() throws Exception {
+        Project<?, ?> projectA = createFreeStyleProject();
+        Project projectB = createFreeStyleProject();
+        projectA.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                build.getWorkspace().child("shard.properties").write("TEST=one", null);
+                return true;
+            }
+        });
+        projectA.getBuildersList().add(createTrigger(projectB));
+        projectA.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                // same size and modification time, other contents
+                FilePath f = build.getWorkspace().child("shard.properties");
+                long lastModified = f.lastModified();
+                f.write("TEST=two", null);
+                f.touch(lastModified);
+                return true;
+            }
+        });
+        projectA.getBuildersList().add(createTrigger(projectB));
+
+        CaptureAllEnvironmentBuilder builder = new CaptureAllEnvironmentBuilder();
+        projectB.getBuildersList().add(builder);
+        projectB.setQuietPeriod(0);
+        hudson.rebuildDependencyGraph();
+
+        projectA.scheduleBuild2(0, new Cause.UserCause()).get();
+        waitUntilNoActivity();
+        Set<String> values = Sets.newHashSet();
+        for (Object o : projectB.getBuilds()) {
+            EnvVars buildEnvVar = builder.getEnvVars().get(((FreeStyleBuild) o).getId());
+            values.add(buildEnvVar.get("TEST"));
+        }
+        assertEquals(ImmutableSet.of("one", "two"), values);
+    }
+
+    private TriggerBuilder createTrigger(Project projectB) {
+        return new TriggerBuilder(
+                new BlockableBuildTriggerConfig(projectB.getName(), null,
+                new BlockingBehaviour(Result.FAILURE, Result.UNSTABLE, Result.FAILURE),
+                ImmutableList.<AbstractBuildParameterFactory>of(new FileBuildParameterFactory("*.properties")),
+                Collections.<AbstractBuildParameters>emptyList()));
+    }
+
+    private void assertOneBuildPerFile(FileBuildParameterFactory factory) throws Exception {
+        Project<?, ?> projectA = createFreeStyleProject();
+        Project projectB = createFreeStyleProject();
+        projectA.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                build.getWorkspace().child("shard1.properties").write("TEST=one\nOTHER=x", null);
+                build.getWorkspace().child("shard2.properties").write("TEST=two", null);
+                build.getWorkspace().child("ignored.txt").write("TEST=three", null);
+                return true;
+            }
+        });
+        projectA.getBuildersList().add(
+                new TriggerBuilder(
+                new BlockableBuildTriggerConfig(projectB.getName(), null,
+                new BlockingBehaviour(Result.FAILURE, Result.UNSTABLE, Result.FAILURE),
+                ImmutableList.<AbstractBuildParameterFactory>of(factory),
+                Collections.<AbstractBuildParameters>emptyList())));
+
+        CaptureAllEnvironmentBuilder builder = new CaptureAllEnvironmentBuilder();
+        projectB.getBuildersList().add(builder);
+        projectB.setQuietPeriod(0);
+        hudson.rebuildDependencyGraph();
+
+        projectA.scheduleBuild2(0, new Cause.UserCause()).get();
+        waitUntilNoActivity();
+        Set<String> values = Sets.newHashSet();
+        for (Object o : projectB.getBuilds()) {
+            EnvVars buildEnvVar = builder.getEnvVars().get(((FreeStyleBuild) o).getId());
+            values.add(buildEnvVar.get("TEST"));
+        }
+        assertEquals(ImmutableSet.of("one", "two"), values);
+    }
+}
@@ -23,15 +23,29 @@
  */
 package hudson.plugins.parameterizedtrigger.test;
 
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Cause.UserCause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
 import hudson.model.Project;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
 import hudson.plugins.parameterizedtrigger.BuildTrigger;
 import hudson.plugins.parameterizedtrigger.BuildTriggerConfig;
 import hudson.plugins.parameterizedtrigger.FileBuildParameters;
 import hudson.plugins.parameterizedtrigger.ResultCondition;
+import hudson.plugins.parameterizedtrigger.TriggerBuilder;
+import net.sf.json.JSONObject;
+
+import java.io.IOException;
 
 import org.jvnet.hudson.test.CaptureEnvironmentBuilder;
 import org.jvnet.hudson.test.HudsonTestCase;
 import org.jvnet.hudson.test.SingleFileSCM;
+import org.jvnet.hudson.test.TestBuilder;
 
 public class FileBuildTriggerConfigTest extends HudsonTestCase {
 
@@ -57,4 +71,149 @@ public class FileBuildTriggerConfigTest extends HudsonTestCase {
         assertNotNull("builder should record environment", builder.getEnvVars());
         assertEquals("value", builder.getEnvVars().get("KEY"));
     }
+
+    public void testValuesAreExpandedAfterParsing() throws Exception {
+        Project projectA = createFreeStyleProject("projectA");
+        projectA.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("DIR", "C:\\work\\tmp")));
+        projectA.setScm(new SingleFileSCM("properties.txt", "KEY=$DIR\nOTHER=a\\\\b"));
+        projectA.getPublishersList().add(
+                new BuildTrigger(
+                new BuildTriggerConfig("projectB", ResultCondition.SUCCESS,
+                new FileBuildParameters("properties.txt"))));
+
+        CaptureEnvironmentBuilder builder = new CaptureEnvironmentBuilder();
+        Project projectB = createFreeStyleProject("projectB");
+        projectB.getBuildersList().add(builder);
+        projectB.setQuietPeriod(1);
+        hudson.rebuildDependencyGraph();
+
+        projectA.scheduleBuild2(0, new UserCause(),
+                new ParametersAction(new StringParameterValue("DIR", "C:\\work\\tmp"))).get();
+        hudson.getQueue().getItem(projectB).getFuture().get();
+
+        // backslashes in the value of DIR are not taken for escapes
+        assertEquals("C:\\work\\tmp", builder.getEnvVars().get("KEY"));
+        assertEquals("a\\b", builder.getEnvVars().get("OTHER"));
+    }
+
+    public void testSizeLimit() throws Exception {
+        hudson.getDescriptorByType(TriggerBuilder.DescriptorImpl.class).configure(null,
+                JSONObject.fromObject("{maxPropertiesFileSize: '1'}"));
+
+        Project projectA = createFreeStyleProject("projectA");
+        StringBuilder properties = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            properties.append("KEY").append(i).append("=value\n");
+        }
+        projectA.setScm(new SingleFileSCM("properties.txt", properties.toString()));
+        projectA.getPublishersList().add(
+                new BuildTrigger(
+                new BuildTriggerConfig("projectB", ResultCondition.SUCCESS,
+                new FileBuildParameters("properties.txt"))));
+
+        Project projectB = createFreeStyleProject("projectB");
+        projectB.setQuietPeriod(1);
+        hudson.rebuildDependencyGraph();
+
+        FreeStyleBuild build = (FreeStyleBuild) projectA.scheduleBuild2(0).get();
+        assertLogContains("more than the limit of 1024", build);
+        // reported as a message, not as the failure of the remote call
+        assertFalse(build.getLog().contains("IOException2"));
+        assertNull(hudson.getQueue().getItem(projectB));
+    }
+
+    public void testSeveralFiles() throws Exception {
+        Project projectA = createFreeStyleProject("projectA");
+        projectA.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                build.getWorkspace().child("a.properties").write("KEY=a\nA=1\n", "ISO-8859-1");
+                build.getWorkspace().child("gen/y.properties").write("KEY=y\nY=1\n", "ISO-8859-1");
+                build.getWorkspace().child("gen/x.properties").write("KEY=x\nX=1\n", "ISO-8859-1");
+                return true;
+            }
+        });
+        projectA.getPublishersList().add(
+                new BuildTrigger(
+                new BuildTriggerConfig("projectB", ResultCondition.SUCCESS,
+                new FileBuildParameters("a.properties, missing.properties, gen/*.properties"))));
+
+        CaptureEnvironmentBuilder builder = new CaptureEnvironmentBuilder();
+        Project projectB = createFreeStyleProject("projectB");
+        projectB.getBuildersList().add(builder);
+        projectB.setQuietPeriod(1);
+        hudson.rebuildDependencyGraph();
+
+        FreeStyleBuild build = (FreeStyleBuild) projectA.scheduleBuild2(0).get();
+        hudson.getQueue().getItem(projectB).getFuture().get();
+
+        assertLogContains("missing.properties did not exist", build);
+        // later files override earlier ones, matches in the order of their paths
+        assertEquals("y", builder.getEnvVars().get("KEY"));
+        assertEquals("1", builder.getEnvVars().get("A"));
+        assertEquals("1", builder.getEnvVars().get("X"));
+        assertEquals("1", builder.getEnvVars().get("Y"));
+    }
+
+    public void testPatternsAreReadLikeFileSets() throws Exception {
+        Project projectA = createFreeStyleProject("projectA");
+        projectA.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                build.getWorkspace().child("a.properties").write("KEY=a\nA=1\n", "ISO-8859-1");
+                build.getWorkspace().child("gen/sub/x.properties").write("KEY=x\nX=1\n", "ISO-8859-1");
+                return true;
+            }
+        });
+        // empty entries are skipped, and a directory stands for all files below it
+        projectA.getPublishersList().add(
+                new BuildTrigger(
+                new BuildTriggerConfig("projectB", ResultCondition.SUCCESS,
+                new FileBuildParameters(" , a.properties ,, gen/ ,"))));
+
+        CaptureEnvironmentBuilder builder = new CaptureEnvironmentBuilder();
+        Project projectB = createFreeStyleProject("projectB");
+        projectB.getBuildersList().add(builder);
+        projectB.setQuietPeriod(1);
+        hudson.rebuildDependencyGraph();
+
+        FreeStyleBuild build = (FreeStyleBuild) projectA.scheduleBuild2(0).get();
+        hudson.getQueue().getItem(projectB).getFuture().get();
+
+        assertFalse(build.getLog().contains("did not exist"));
+        assertEquals("x", builder.getEnvVars().get("KEY"));
+        assertEquals("1", builder.getEnvVars().get("A"));
+        assertEquals("1", builder.getEnvVars().get("X"));
+    }
+
+    public void testPlainNamesAreReadDirectly() throws Exception {
+        Project projectA = createFreeStyleProject("projectA");
+        projectA.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                build.getWorkspace().child("../up.properties").write("UP=1\n", "ISO-8859-1");
+                build.getWorkspace().child(".gitmodules").write("HIDDEN=1\n", "ISO-8859-1");
+                return true;
+            }
+        });
+        // neither would be matched by a file set
+        projectA.getPublishersList().add(
+                new BuildTrigger(
+                new BuildTriggerConfig("projectB", ResultCondition.SUCCESS,
+                new FileBuildParameters("../up.properties,.gitmodules"))));
+
+        CaptureEnvironmentBuilder builder = new CaptureEnvironmentBuilder();
+        Project projectB = createFreeStyleProject("projectB");
+        projectB.getBuildersList().add(builder);
+        projectB.setQuietPeriod(1);
+        hudson.rebuildDependencyGraph();
+
+        FreeStyleBuild build = (FreeStyleBuild) projectA.scheduleBuild2(0).get();
+        hudson.getQueue().getItem(projectB).getFuture().get();
+
+        assertFalse(build.getLog().contains("did not exist"));
+        assertEquals("1", builder.getEnvVars().get("UP"));
+        assertEquals("1", builder.getEnvVars().get("HIDDEN"));
+    }
 }
@@ -23,12 +23,20 @@
  */
 package hudson.plugins.parameterizedtrigger.test;
 
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
 import hudson.model.Project;
+import hudson.model.Run;
+import hudson.model.StringParameterValue;
 import hudson.plugins.parameterizedtrigger.BuildTrigger;
 import hudson.plugins.parameterizedtrigger.BuildTriggerConfig;
 import hudson.plugins.parameterizedtrigger.PredefinedBuildParameters;
 import hudson.plugins.parameterizedtrigger.ResultCondition;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.jvnet.hudson.test.CaptureEnvironmentBuilder;
 import org.jvnet.hudson.test.HudsonTestCase;
 
@@ -54,4 +62,28 @@ public class PredefinedPropertiesBuildTriggerConfigTest extends HudsonTestCase {
         assertNotNull("builder should record environment", builder.getEnvVars());
         assertEquals("value", builder.getEnvVars().get("KEY"));
     }
+
+    public void testOrderAndExpansion() throws Exception {
+        Project projectA = createFreeStyleProject("projectA");
+        projectA.getPublishersList().add(
+                new BuildTrigger(new BuildTriggerConfig("projectB", ResultCondition.SUCCESS,
+                new PredefinedBuildParameters("ZED=1\nALPHA=$BUILD_NUMBER\nMID=3\nZED=4"))));
+
+        Project projectB = createFreeStyleProject("projectB");
+        projectB.setQuietPeriod(1);
+        hudson.rebuildDependencyGraph();
+
+        projectA.scheduleBuild2(0).get();
+        Run r = (Run) hudson.getQueue().getItem(projectB).getFuture().get();
+
+        List<String> names = new ArrayList<String>();
+        for (ParameterValue value : r.getAction(ParametersAction.class).getParameters()) {
+            names.add(value.getName());
+        }
+        // parameters keep the order they are written in, even though the
+        // properties are only parsed once
+        assertEquals(Arrays.asList("ZED", "ALPHA", "MID"), names);
+        assertEquals("4", ((StringParameterValue) r.getAction(ParametersAction.class).getParameter("ZED")).value);
+        assertEquals("1", ((StringParameterValue) r.getAction(ParametersAction.class).getParameter("ALPHA")).value);
+    }
 }
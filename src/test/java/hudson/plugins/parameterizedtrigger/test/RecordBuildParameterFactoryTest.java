@@ -0,0 +1,92 @@
+package hudson.plugins.parameterizedtrigger.test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import hudson.EnvVars;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.Label;
+import hudson.model.Project;
+import hudson.model.Result;
+import hudson.plugins.parameterizedtrigger.AbstractBuildParameterFactory;
+import hudson.plugins.parameterizedtrigger.AbstractBuildParameters;
+import hudson.plugins.parameterizedtrigger.BlockableBuildTriggerConfig;
+import hudson.plugins.parameterizedtrigger.BlockingBehaviour;
+import hudson.plugins.parameterizedtrigger.RecordBuildParameterFactory;
+import hudson.plugins.parameterizedtrigger.RecordBuildParameterFactory.Format;
+import hudson.plugins.parameterizedtrigger.TriggerBuilder;
+import org.jvnet.hudson.test.HudsonTestCase;
+import org.jvnet.hudson.test.TestBuilder;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+public class RecordBuildParameterFactoryTest extends HudsonTestCase {
+
+    public void testCsv() throws Exception {
+        assertEquals(ImmutableSet.of("a/b", "c,d", "e\"f"),
+                triggerWith(Format.CSV, "SHARD,OTHER\na/b,1\n\"c,d\",2\r\n\"e\"\"f\",3\n"));
+    }
+
+    public void testTsv() throws Exception {
+        assertEquals(ImmutableSet.of("a", "b"),
+                triggerWith(Format.TSV, "OTHER\tSHARD\n1\ta\n\n2\tb\n"));
+    }
+
+    public void testJsonLines() throws Exception {
+        assertEquals(ImmutableSet.of("a", "b"),
+                triggerWith(Format.JSONL, "{\"SHARD\": \"a\", \"OTHER\": 1}\n{\"SHARD\": \"b\"}\n"));
+    }
+
+    public void testCsvOnSlave() throws Exception {
+        // the records are streamed through the channel rather than in process
+        assertEquals(ImmutableSet.of("a", "b"),
+                triggerWith(Format.CSV, "SHARD\na\nb\n", createOnlineSlave().getSelfLabel()));
+    }
+
+    private Set<String> triggerWith(Format format, String records) throws Exception {
+        return triggerWith(format, records, null);
+    }
+
+    /**
+     * @param label where to run the triggering build, or {@code null}.
+     * @return the values of SHARD the triggered builds got.
+     */
+    private Set<String> triggerWith(Format format, final String records, Label label) throws Exception {
+        Project<?, ?> projectA = createFreeStyleProject();
+        projectA.setAssignedLabel(label);
+        Project projectB = createFreeStyleProject();
+        projectA.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                build.getWorkspace().child("shards").write(records, "UTF-8");
+                return true;
+            }
+        });
+        projectA.getBuildersList().add(
+                new TriggerBuilder(
+                new BlockableBuildTriggerConfig(projectB.getName(), null,
+                new BlockingBehaviour(Result.FAILURE, Result.UNSTABLE, Result.FAILURE),
+                ImmutableList.<AbstractBuildParameterFactory>of(new RecordBuildParameterFactory("shards", format)),
+                Collections.<AbstractBuildParameters>emptyList())));
+
+        CaptureAllEnvironmentBuilder builder = new CaptureAllEnvironmentBuilder();
+        projectB.getBuildersList().add(builder);
+        projectB.setQuietPeriod(0);
+        hudson.rebuildDependencyGraph();
+
+        projectA.scheduleBuild2(0, new Cause.UserCause()).get();
+        waitUntilNoActivity();
+        Set<String> values = Sets.newHashSet();
+        for (Object o : projectB.getBuilds()) {
+            EnvVars buildEnvVar = builder.getEnvVars().get(((FreeStyleBuild) o).getId());
+            values.add(buildEnvVar.get("SHARD"));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,115 @@
+package hudson.plugins.parameterizedtrigger.test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import hudson.EnvVars;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.Project;
+import hudson.model.Result;
+import hudson.plugins.parameterizedtrigger.AbstractBuildParameterFactory;
+import hudson.plugins.parameterizedtrigger.AbstractBuildParameters;
+import hudson.plugins.parameterizedtrigger.BlockableBuildTriggerConfig;
+import hudson.plugins.parameterizedtrigger.BlockingBehaviour;
+import hudson.plugins.parameterizedtrigger.ShardingBuildParameterFactory;
+import hudson.plugins.parameterizedtrigger.TriggerBuilder;
+import org.jvnet.hudson.test.HudsonTestCase;
+import org.jvnet.hudson.test.TestBuilder;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+public class ShardingBuildParameterFactoryTest extends HudsonTestCase {
+
+    public void testItemsAreSplitIntoShards() throws Exception {
+        Project<?, ?> projectA = createFreeStyleProject();
+        Project projectB = createFreeStyleProject();
+        projectA.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                build.getWorkspace().child("items").write("a\nb\n# comment\nc\n\nd\n", null);
+                return true;
+            }
+        });
+        projectA.getBuildersList().add(
+                new TriggerBuilder(
+                new BlockableBuildTriggerConfig(projectB.getName(), null,
+                new BlockingBehaviour(Result.FAILURE, Result.UNSTABLE, Result.FAILURE),
+                ImmutableList.<AbstractBuildParameterFactory>of(new ShardingBuildParameterFactory("items", "2", "")),
+                Collections.<AbstractBuildParameters>emptyList())));
+
+        CaptureAllEnvironmentBuilder builder = new CaptureAllEnvironmentBuilder();
+        projectB.getBuildersList().add(builder);
+        projectB.setQuietPeriod(0);
+        hudson.rebuildDependencyGraph();
+
+        FreeStyleBuild build = (FreeStyleBuild) projectA.scheduleBuild2(0, new Cause.UserCause()).get();
+        waitUntilNoActivity();
+        assertLogContains("Split 4 items into 2 shards", build);
+        Set<String> values = Sets.newHashSet();
+        for (Object o : projectB.getBuilds()) {
+            EnvVars buildEnvVar = builder.getEnvVars().get(((FreeStyleBuild) o).getId());
+            assertEquals("2", buildEnvVar.get("SHARD_COUNT"));
+            values.add(buildEnvVar.get("SHARD_ITEMS"));
+        }
+        // without history, every item weighs the same
+        assertEquals(ImmutableSet.of("a,c", "b,d"), values);
+    }
+
+    public void testItemsWithCommasUseAnotherSeparator() throws Exception {
+        Project<?, ?> projectA = createFreeStyleProject();
+        Project projectB = createFreeStyleProject();
+        writeItems(projectA, "a,1\nb,2\nc,3\n");
+        projectA.getBuildersList().add(
+                new TriggerBuilder(
+                new BlockableBuildTriggerConfig(projectB.getName(), null,
+                new BlockingBehaviour(Result.FAILURE, Result.UNSTABLE, Result.FAILURE),
+                ImmutableList.<AbstractBuildParameterFactory>of(new ShardingBuildParameterFactory("items", "1", "", ";")),
+                Collections.<AbstractBuildParameters>emptyList())));
+
+        CaptureAllEnvironmentBuilder builder = new CaptureAllEnvironmentBuilder();
+        projectB.getBuildersList().add(builder);
+        projectB.setQuietPeriod(0);
+        hudson.rebuildDependencyGraph();
+
+        projectA.scheduleBuild2(0, new Cause.UserCause()).get();
+        waitUntilNoActivity();
+        FreeStyleBuild b = (FreeStyleBuild) projectB.getLastBuild();
+        assertEquals("a,1;b,2;c,3", builder.getEnvVars().get(b.getId()).get("SHARD_ITEMS"));
+    }
+
+    public void testItemsContainingTheSeparatorAreRejected() throws Exception {
+        Project<?, ?> projectA = createFreeStyleProject();
+        Project projectB = createFreeStyleProject();
+        writeItems(projectA, "a,1\nb,2\n");
+        projectA.getBuildersList().add(
+                new TriggerBuilder(
+                new BlockableBuildTriggerConfig(projectB.getName(), null,
+                new BlockingBehaviour(Result.FAILURE, Result.UNSTABLE, Result.FAILURE),
+                ImmutableList.<AbstractBuildParameterFactory>of(new ShardingBuildParameterFactory("items", "2", "")),
+                Collections.<AbstractBuildParameters>emptyList())));
+        projectB.setQuietPeriod(0);
+        hudson.rebuildDependencyGraph();
+
+        FreeStyleBuild build = (FreeStyleBuild) projectA.scheduleBuild2(0, new Cause.UserCause()).get();
+        waitUntilNoActivity();
+        assertBuildStatus(Result.FAILURE, build);
+        assertLogContains("Work item 'a,1' contains the separator ','", build);
+        assertNull(projectB.getLastBuild());
+    }
+
+    private static void writeItems(Project<?, ?> project, final String items) {
+        project.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                build.getWorkspace().child("items").write(items, null);
+                return true;
+            }
+        });
+    }
+}
@@ -23,11 +23,15 @@
  */
 package hudson.plugins.parameterizedtrigger.test;
 
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
 import hudson.model.BooleanParameterValue;
+import hudson.model.FreeStyleProject;
 import hudson.model.ParametersAction;
 import hudson.model.Project;
 import hudson.model.ParameterValue;
 import hudson.model.Result;
+import hudson.model.TaskListener;
 import hudson.plugins.parameterizedtrigger.AbstractBuildParameterFactory;
 import hudson.plugins.parameterizedtrigger.AbstractBuildParameters;
 import hudson.plugins.parameterizedtrigger.BlockableBuildTriggerConfig;
@@ -39,7 +43,10 @@ import hudson.plugins.parameterizedtrigger.TriggerBuilder;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jvnet.hudson.test.FailureBuilder;
 import org.jvnet.hudson.test.HudsonTestCase;
+import org.jvnet.hudson.test.SleepBuilder;
 import org.jvnet.hudson.test.recipes.PresetData;
 
 import com.google.common.collect.ImmutableList;
@@ -47,6 +54,7 @@ import hudson.model.Run;
 import hudson.model.StringParameterValue;
 
 import java.io.IOException;
+import net.sf.json.JSONObject;
 
 public class TriggerBuilderTest extends HudsonTestCase {
 
@@ -137,16 +145,16 @@ public class TriggerBuilderTest extends HudsonTestCase {
 
         triggerProject.scheduleBuild2(0).get();
 
-        assertLines(triggerProject.getLastBuild(),
-                "project1 #1 completed. Result was SUCCESS",
-                "project1 #2 completed. Result was SUCCESS",
-                "project1 #3 completed. Result was SUCCESS",
-                "project2 #1 completed. Result was SUCCESS",
-                "project2 #2 completed. Result was SUCCESS",
-                "project2 #3 completed. Result was SUCCESS",
-                "project3 #1 completed. Result was SUCCESS",
-                "project3 #2 completed. Result was SUCCESS",
-                "project3 #3 completed. Result was SUCCESS");
+        // results are reported in the order the builds complete
+        assertLines(triggerProject.getLastBuild(), "project1 #1 completed. Result was SUCCESS");
+        assertLines(triggerProject.getLastBuild(), "project1 #2 completed. Result was SUCCESS");
+        assertLines(triggerProject.getLastBuild(), "project1 #3 completed. Result was SUCCESS");
+        assertLines(triggerProject.getLastBuild(), "project2 #1 completed. Result was SUCCESS");
+        assertLines(triggerProject.getLastBuild(), "project2 #2 completed. Result was SUCCESS");
+        assertLines(triggerProject.getLastBuild(), "project2 #3 completed. Result was SUCCESS");
+        assertLines(triggerProject.getLastBuild(), "project3 #1 completed. Result was SUCCESS");
+        assertLines(triggerProject.getLastBuild(), "project3 #2 completed. Result was SUCCESS");
+        assertLines(triggerProject.getLastBuild(), "project3 #3 completed. Result was SUCCESS");
     }
 
     public void testBlockingTriggerWithDisabledProjects() throws Exception {
@@ -200,6 +208,128 @@ public class TriggerBuilderTest extends HudsonTestCase {
         assertLines(triggerProject.getLastBuild(), "project6 #1 completed. Result was SUCCESS");
     }
 
+    public void testFailFastCancelsOtherTriggeredBuilds() throws Exception {
+        FreeStyleProject p1 = createFreeStyleProject("project1");
+        p1.getBuildersList().add(new FailureBuilder());
+        FreeStyleProject p2 = createFreeStyleProject("project2");
+        p2.getBuildersList().add(new SleepBuilder(60000));
+
+        Project<?, ?> triggerProject = createFreeStyleProject("projectA");
+        BlockingBehaviour failFast = new BlockingBehaviour("FAILURE", "never", "never", false, true);
+        triggerProject.getBuildersList().add(new TriggerBuilder(
+                new BlockableBuildTriggerConfig("project1, project2", failFast, null)));
+
+        assertBuildStatus(Result.FAILURE, triggerProject.scheduleBuild2(0).get());
+
+        assertLines(triggerProject.getLastBuild(), "project1 #1 completed. Result was FAILURE");
+        // project2 was either still queued or got aborted; the step does not
+        // wait for the abort to complete
+        Run<?, ?> b2 = p2.getLastBuild();
+        if (b2 != null) {
+            waitForCompletion(b2, 30000);
+            assertEquals(Result.ABORTED, b2.getResult());
+        }
+    }
+
+    public void testFailFastWhileOtherConfigsAreScheduling() throws Exception {
+        FreeStyleProject p1 = createFreeStyleProject("project1");
+        p1.getBuildersList().add(new FailureBuilder());
+        FreeStyleProject p2 = createFreeStyleProject("project2");
+        p2.getBuildersList().add(new SleepBuilder(60000));
+
+        Project<?, ?> triggerProject = createFreeStyleProject("projectA");
+        BlockingBehaviour failFast = new BlockingBehaviour("FAILURE", "never", "never", false, true);
+        triggerProject.getBuildersList().add(new TriggerBuilder(ImmutableList.of(
+                new BlockableBuildTriggerConfig("project1", failFast, null),
+                new BlockableBuildTriggerConfig("project2", failFast,
+                Collections.<AbstractBuildParameters>singletonList(new SlowParameters(5000)))), "2"));
+
+        // the failure is handled while project2 is still being scheduled,
+        // so its build is cancelled rather than waited for
+        Run<?, ?> build = triggerProject.scheduleBuild2(0).get(30, TimeUnit.SECONDS);
+        assertBuildStatus(Result.FAILURE, build);
+        assertLines(build, "project1 #1 completed. Result was FAILURE");
+        Run<?, ?> b2 = p2.getLastBuild();
+        if (b2 != null) {
+            waitForCompletion(b2, 30000);
+            assertEquals(Result.ABORTED, b2.getResult());
+        }
+    }
+
+    public void testCappedConfigDoesNotHoldTriggerThread() throws Exception {
+        hudson.setNumExecutors(4);
+        hudson.getDescriptorByType(TriggerBuilder.DescriptorImpl.class).configure(null,
+                JSONObject.fromObject("{threadPoolSize: '1'}"));
+        FreeStyleProject p1 = createFreeStyleProject("project1");
+        p1.getBuildersList().add(new SleepBuilder(1000));
+        p1.setConcurrentBuild(true);
+        FreeStyleProject p2 = createFreeStyleProject("project2");
+
+        Project<?, ?> triggerProject = createFreeStyleProject("projectA");
+        BlockingBehaviour never = new BlockingBehaviour("never", "never", "never");
+        triggerProject.getBuildersList().add(new TriggerBuilder(ImmutableList.of(
+                new BlockableBuildTriggerConfig("project1", null, never,
+                ImmutableList.<AbstractBuildParameterFactory>of(new CounterBuildParameterFactory("1", "3", "1", "TEST=COUNT$COUNT")),
+                Collections.<AbstractBuildParameters>emptyList(), null, 1),
+                new BlockableBuildTriggerConfig("project2", never, null)), "1"));
+
+        assertBuildStatusSuccess(triggerProject.scheduleBuild2(0).get());
+        assertEquals(3, p1.getBuilds().size());
+        // the second config got the only thread while the builds of the
+        // first one were waiting for room
+        assertTrue(p2.getLastBuild().getTimeInMillis() < p1.getLastBuild().getTimeInMillis());
+    }
+
+    public void testNestedBlockingTriggersWithOneThread() throws Exception {
+        hudson.setNumExecutors(3);
+        hudson.getDescriptorByType(TriggerBuilder.DescriptorImpl.class).configure(null,
+                JSONObject.fromObject("{threadPoolSize: '1'}"));
+        BlockingBehaviour block = new BlockingBehaviour(Result.FAILURE, Result.UNSTABLE, Result.FAILURE);
+        createFreeStyleProject("projectC");
+        Project<?, ?> projectB = createFreeStyleProject("projectB");
+        projectB.getBuildersList().add(new TriggerBuilder(new BlockableBuildTriggerConfig("projectC", block, null)));
+        Project<?, ?> projectA = createFreeStyleProject("projectA");
+        projectA.getBuildersList().add(new TriggerBuilder(new BlockableBuildTriggerConfig("projectB", block, null)));
+
+        // the trigger thread must not be held while projectA waits for
+        // projectB, which needs it to trigger projectC
+        Run<?, ?> build = projectA.scheduleBuild2(0).get(60, TimeUnit.SECONDS);
+        assertBuildStatusSuccess(build);
+        assertLogContains("projectB #1 completed. Result was SUCCESS", build);
+    }
+
+    public void testScheduleTimeoutCancelsScheduledBuilds() throws Exception {
+        hudson.getDescriptorByType(TriggerBuilder.DescriptorImpl.class).configure(null,
+                JSONObject.fromObject("{scheduleTimeout: '1'}"));
+        FreeStyleProject p1 = createFreeStyleProject("project1");
+        // no node can run it, so its first build stays in the queue and the
+        // identical second one is refused
+        p1.setAssignedLabel(hudson.getLabel("nowhere"));
+
+        Project<?, ?> triggerProject = createFreeStyleProject("projectA");
+        triggerProject.getBuildersList().add(new TriggerBuilder(
+                new BlockableBuildTriggerConfig("project1", null, new BlockingBehaviour("never", "never", "never"),
+                ImmutableList.<AbstractBuildParameterFactory>of(new CounterBuildParameterFactory("1", "2", "1", "TEST=SAME")),
+                Collections.<AbstractBuildParameters>emptyList())));
+
+        Run<?, ?> build = triggerProject.scheduleBuild2(0).get();
+        assertBuildStatus(Result.FAILURE, build);
+        assertLogContains("Gave up scheduling project1", build);
+        assertLogContains("Cancelled 1 build(s) of project1", build);
+        assertTrue(hudson.getQueue().getItems(p1).isEmpty());
+    }
+
+    /**
+     * Fails rather than hanging if the build does not complete in time.
+     */
+    private static void waitForCompletion(Run<?, ?> build, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (build.isBuilding()) {
+            assertTrue(build + " did not complete within " + timeout + "ms", System.currentTimeMillis() < deadline);
+            Thread.sleep(100);
+        }
+    }
+
     private void assertLines(Run<?, ?> build, String... lines) throws IOException {
         List<String> log = build.getLog(Integer.MAX_VALUE);
         List<String> rest = log;
@@ -209,4 +339,22 @@ public class TriggerBuilderTest extends HudsonTestCase {
             rest = rest.subList(where + 1, rest.size());
         }
     }
+
+    /**
+     * Takes a while to compute, like a slow parameter file on a busy node.
+     */
+    public static class SlowParameters extends AbstractBuildParameters {
+
+        private final long delay;
+
+        public SlowParameters(long delay) {
+            this.delay = delay;
+        }
+
+        @Override
+        public Action getAction(AbstractBuild<?, ?> build, TaskListener listener) throws InterruptedException {
+            Thread.sleep(delay);
+            return null;
+        }
+    }
 }
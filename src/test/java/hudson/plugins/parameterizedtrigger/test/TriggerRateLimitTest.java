@@ -0,0 +1,78 @@
+package hudson.plugins.parameterizedtrigger.test;
+
+import com.google.common.collect.ImmutableList;
+import hudson.model.AbstractBuild;
+import hudson.model.Cause;
+import hudson.model.FreeStyleProject;
+import hudson.model.Project;
+import hudson.plugins.parameterizedtrigger.AbstractBuildParameterFactory;
+import hudson.plugins.parameterizedtrigger.AbstractBuildParameters;
+import hudson.plugins.parameterizedtrigger.BlockableBuildTriggerConfig;
+import hudson.plugins.parameterizedtrigger.BlockingBehaviour;
+import hudson.plugins.parameterizedtrigger.BuildTrigger;
+import hudson.plugins.parameterizedtrigger.BuildTriggerConfig;
+import hudson.plugins.parameterizedtrigger.CounterBuildParameterFactory;
+import hudson.plugins.parameterizedtrigger.PredefinedBuildParameters;
+import hudson.plugins.parameterizedtrigger.ResultCondition;
+import hudson.plugins.parameterizedtrigger.TriggerBuilder;
+import hudson.plugins.parameterizedtrigger.TriggerRateLimit;
+import net.sf.json.JSONObject;
+
+import java.util.Collections;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+
+public class TriggerRateLimitTest extends HudsonTestCase {
+
+    public void testPostBuildTriggerIsRateLimited() throws Exception {
+        hudson.setNumExecutors(4);
+        Project<?, ?> projectA = createFreeStyleProject("projectA");
+        FreeStyleProject[] downstream = new FreeStyleProject[3];
+        for (int i = 0; i < downstream.length; i++) {
+            downstream[i] = createFreeStyleProject("projectB" + i);
+            downstream[i].setQuietPeriod(0);
+        }
+        projectA.getPublishersList().add(new BuildTrigger(new BuildTriggerConfig(
+                "projectB0, projectB1, projectB2", ResultCondition.SUCCESS, false,
+                Collections.<AbstractBuildParameters>singletonList(new PredefinedBuildParameters("KEY=value")),
+                new TriggerRateLimit(1, 0))));
+        hudson.rebuildDependencyGraph();
+
+        projectA.scheduleBuild2(0, new Cause.UserCause()).get();
+        waitUntilNoActivity();
+
+        // the dependency graph puts one build in the queue per second
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (FreeStyleProject p : downstream) {
+            AbstractBuild<?, ?> b = p.getLastBuild();
+            assertNotNull(b);
+            first = Math.min(first, b.getTimeInMillis());
+            last = Math.max(last, b.getTimeInMillis());
+        }
+        assertTrue("builds were triggered " + (last - first) + "ms apart", last - first >= 1500);
+    }
+
+    public void testRateLimitedConfigDoesNotHoldTriggerThread() throws Exception {
+        hudson.setNumExecutors(4);
+        hudson.getDescriptorByType(TriggerBuilder.DescriptorImpl.class).configure(null,
+                JSONObject.fromObject("{threadPoolSize: '1'}"));
+        FreeStyleProject p1 = createFreeStyleProject("project1");
+        p1.setConcurrentBuild(true);
+        FreeStyleProject p2 = createFreeStyleProject("project2");
+
+        Project<?, ?> triggerProject = createFreeStyleProject("projectA");
+        BlockingBehaviour never = new BlockingBehaviour("never", "never", "never");
+        triggerProject.getBuildersList().add(new TriggerBuilder(ImmutableList.of(
+                new BlockableBuildTriggerConfig("project1", null, never,
+                ImmutableList.<AbstractBuildParameterFactory>of(new CounterBuildParameterFactory("1", "4", "1", "TEST=COUNT$COUNT")),
+                Collections.<AbstractBuildParameters>emptyList(), new TriggerRateLimit(1, 0)),
+                new BlockableBuildTriggerConfig("project2", never, null)), "1"));
+
+        assertBuildStatusSuccess(triggerProject.scheduleBuild2(0).get());
+        assertEquals(4, p1.getBuilds().size());
+        // the second config got the only thread while the first one was
+        // paced by the build thread
+        assertTrue(p2.getLastBuild().getTimeInMillis() < p1.getLastBuild().getTimeInMillis());
+    }
+}